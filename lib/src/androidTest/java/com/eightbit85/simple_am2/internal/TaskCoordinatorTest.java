@@ -1,13 +1,16 @@
 package com.eightbit85.simple_am2.internal;
 
 import android.content.Context;
+import android.os.HandlerThread;
 import android.os.Looper;
-import android.util.Log;
 
 import androidx.media2.common.MediaItem;
 import androidx.media2.common.SessionPlayer;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 
+import com.eightbit85.simple_am2.PlayerSnapshot;
+import com.eightbit85.simple_am2.TaskMetrics;
+import com.eightbit85.simple_am2.Tracer;
 import com.google.common.util.concurrent.ListenableFuture;
 
 import org.junit.Test;
@@ -15,16 +18,28 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.stubbing.Answer;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -46,6 +61,7 @@ public class TaskCoordinatorTest {
 
   private TaskCoordinator coord;
   private TaskCoordinator.BufferListener listener;
+  private ExoWrapperFactory fact;
 
   public TaskCoordinatorTest() {
     listener = new TaskCoordinator.BufferListener() {
@@ -65,13 +81,14 @@ public class TaskCoordinatorTest {
       }
 
       @Override
-      public Integer convertStatus(int status) {
+      public int convertStatus(int status) {
         if (status == TaskCoordinator.CALL_STATUS_NO_ERROR) return SessionPlayer.PlayerResult.RESULT_SUCCESS;
+        if (status == TaskCoordinator.CALL_STATUS_SKIPPED) return SessionPlayer.PlayerResult.RESULT_INFO_SKIPPED;
         return SessionPlayer.PlayerResult.RESULT_ERROR_UNKNOWN;
       }
     };
 
-    ExoWrapperFactory fact = new ExoWrapperFactory() {
+    fact = new ExoWrapperFactory() {
       @Override
       ExoPlayerWrapper getWrapper(Context context, Looper looper, ExoPlayerWrapper.WrapperListener listener) {
         return mockExoWrapper;
@@ -90,7 +107,7 @@ public class TaskCoordinatorTest {
         public void run() { // simulate the wait for the callback by running on a separate thread
           try {
             Thread.sleep(10L);
-            coord.onPrepared(mockMediaItem);
+            coord.onPrepared(0);
           } catch (InterruptedException e) {
             e.printStackTrace();
           }
@@ -143,21 +160,427 @@ public class TaskCoordinatorTest {
   }
 
   @Test
-  public void test_blocking_call_success() {
-    when(mockExoWrapper.getCurrentPosition()).thenReturn(10L);
+  public void test_queued_seeks_coalesce() throws InterruptedException, ExecutionException, TimeoutException {
+    doAnswer((Answer<Void>) invocation -> {
+      new Thread() {
+        public void run() { // keeps the queue busy while the seeks are submitted
+          try {
+            Thread.sleep(50L);
+            coord.onPrepared(0);
+          } catch (InterruptedException e) {
+            e.printStackTrace();
+          }
+        }
+      }.start();
+
+      return null;
+    }).when(mockExoWrapper).prepare();
+
+    doAnswer((Answer<Void>) invocation -> {
+      new Thread() {
+        public void run() { // simulate the wait for the callback by running on a separate thread
+          try {
+            Thread.sleep(10L);
+            coord.onSeekCompleted(0);
+          } catch (InterruptedException e) {
+            e.printStackTrace();
+          }
+        }
+      }.start();
+
+      return null;
+    }).when(mockExoWrapper).seekTo(anyLong());
+
+    when(mockExoWrapper.getCurrentMediaItem()).thenReturn(mockMediaItem);
+
+    coord.submit(coord.prepare());
+    ListenableFuture<SessionPlayer.PlayerResult> seek1 = coord.submit(coord.seekTo(1L));
+    ListenableFuture<SessionPlayer.PlayerResult> seek2 = coord.submit(coord.seekTo(2L));
+    ListenableFuture<SessionPlayer.PlayerResult> seek3 = coord.submit(coord.seekTo(3L));
+
+    assertEquals(SessionPlayer.PlayerResult.RESULT_INFO_SKIPPED, seek1.get(2, TimeUnit.SECONDS).getResultCode());
+    assertEquals(SessionPlayer.PlayerResult.RESULT_INFO_SKIPPED, seek2.get(2, TimeUnit.SECONDS).getResultCode());
+    assertEquals(SessionPlayer.PlayerResult.RESULT_SUCCESS, seek3.get(2, TimeUnit.SECONDS).getResultCode());
+
+    verify(mockExoWrapper, never()).seekTo(1L);
+    verify(mockExoWrapper, never()).seekTo(2L);
+    verify(mockExoWrapper).seekTo(3L);
+  }
+
+  @Test
+  public void test_stale_callback_ignored() throws InterruptedException, ExecutionException, TimeoutException {
+    when(mockExoWrapper.getLastSeekId()).thenReturn(2);
+    when(mockExoWrapper.getCurrentMediaItem()).thenReturn(mockMediaItem);
+
+    ListenableFuture<SessionPlayer.PlayerResult> seek = coord.submit(coord.seekTo(1L));
+
+    Thread.sleep(10L); // enough time for the seek to be waiting
+    coord.onSeekCompleted(1); // belongs to an earlier seek
+    Thread.sleep(10L);
+    assertFalse(seek.isDone());
+
+    coord.onSeekCompleted(2);
+    assertEquals(SessionPlayer.PlayerResult.RESULT_SUCCESS, seek.get(2, TimeUnit.SECONDS).getResultCode());
+  }
+
+  @Test
+  public void test_independent_task_runs_while_waiting() throws InterruptedException, ExecutionException, TimeoutException {
+    when(mockExoWrapper.getCurrentMediaItem()).thenReturn(mockMediaItem);
+
+    ListenableFuture<SessionPlayer.PlayerResult> prepare = coord.submit(coord.prepare());
+    ListenableFuture<SessionPlayer.PlayerResult> volume = coord.submit(coord.setVolume(0.5f));
+    ListenableFuture<SessionPlayer.PlayerResult> play = coord.submit(coord.play());
+
+    // nothing else touches the volume, so it doesn't wait for prepare
+    assertEquals(SessionPlayer.PlayerResult.RESULT_SUCCESS, volume.get(2, TimeUnit.SECONDS).getResultCode());
+    assertFalse(prepare.isDone());
+    assertFalse(play.isDone()); // depends on prepare
+    verify(mockExoWrapper, never()).play();
+
+    coord.onPrepared(0);
+    assertEquals(SessionPlayer.PlayerResult.RESULT_SUCCESS, prepare.get(2, TimeUnit.SECONDS).getResultCode());
+    assertEquals(SessionPlayer.PlayerResult.RESULT_SUCCESS, play.get(2, TimeUnit.SECONDS).getResultCode());
+  }
+
+  @Test
+  public void test_interactive_task_overtakes() throws InterruptedException, ExecutionException, TimeoutException {
+    ArrayBlockingQueue<String> looperResults = new ArrayBlockingQueue<>(10);
+
+    doAnswer((Answer<Void>) invocation -> {
+      looperResults.put("volume");
+      Thread.sleep(50L); // keeps exo busy while everything else is submitted
+      return null;
+    }).when(mockExoWrapper).setVolume(0.5f);
+
+    doAnswer((Answer<Void>) invocation -> {
+      looperResults.put("add");
+      return null;
+    }).when(mockExoWrapper).addToPlaylist(0, mockMediaItem);
+
+    doAnswer((Answer<Void>) invocation -> {
+      looperResults.put("repeat");
+      return null;
+    }).when(mockExoWrapper).setRepeatMode(1);
+
+    doAnswer((Answer<Void>) invocation -> {
+      looperResults.put("pause");
+      return null;
+    }).when(mockExoWrapper).pause();
+
+    when(mockExoWrapper.getCurrentMediaItem()).thenReturn(mockMediaItem);
+
+    coord.submit(coord.setVolume(0.5f));
+    Thread.sleep(10L); // enough time for the volume to reach exo
+    coord.submit(coord.addPlaylistItem(0, mockMediaItem));
+    coord.submit(coord.setRepeatMode(1));
+    ListenableFuture<SessionPlayer.PlayerResult> pause = coord.submit(coord.pause());
+
+    assertEquals(SessionPlayer.PlayerResult.RESULT_SUCCESS, pause.get(2, TimeUnit.SECONDS).getResultCode());
+    assertEquals("volume", looperResults.take());
+    assertEquals("pause", looperResults.take());
+  }
+
+  @Test
+  public void test_missing_callback_times_out() throws InterruptedException, ExecutionException, TimeoutException {
+    when(mockExoWrapper.getCurrentMediaItem()).thenReturn(mockMediaItem);
+    coord.setCallbackTimeouts(50L, 50L);
+
+    ListenableFuture<SessionPlayer.PlayerResult> prepare = coord.submit(coord.prepare()); // onPrepared never comes
+    ListenableFuture<SessionPlayer.PlayerResult> play = coord.submit(coord.play());
+
+    assertEquals(SessionPlayer.PlayerResult.RESULT_ERROR_UNKNOWN, prepare.get(2, TimeUnit.SECONDS).getResultCode());
+    assertEquals(SessionPlayer.PlayerResult.RESULT_SUCCESS, play.get(2, TimeUnit.SECONDS).getResultCode());
+    assertEquals(1, coord.getStallCount());
+  }
+
+  @Test
+  public void test_batch_success() throws InterruptedException, ExecutionException, TimeoutException {
+    ArrayBlockingQueue<String> looperResults = new ArrayBlockingQueue<>(10);
+
+    doAnswer((Answer<Void>) invocation -> {
+      looperResults.put("setMediaItem");
+      return null;
+    }).when(mockExoWrapper).setMediaItem(mockMediaItem);
+
+    doAnswer((Answer<Void>) invocation -> {
+      looperResults.put("setVolume");
+      return null;
+    }).when(mockExoWrapper).setVolume(0.5f);
+
+    doAnswer((Answer<Void>) invocation -> {
+      looperResults.put("play");
+      return null;
+    }).when(mockExoWrapper).play();
+
+    when(mockExoWrapper.getCurrentMediaItem()).thenReturn(mockMediaItem);
+
+    ListenableFuture<SessionPlayer.PlayerResult> batch = coord.submitBatch(Arrays.asList(
+      coord.setMediaItem(mockMediaItem),
+      coord.setVolume(0.5f),
+      coord.play()));
+
+    assertEquals(SessionPlayer.PlayerResult.RESULT_SUCCESS, batch.get(2, TimeUnit.SECONDS).getResultCode());
+    assertEquals("setMediaItem", looperResults.take());
+    assertEquals("setVolume", looperResults.take());
+    assertEquals("play", looperResults.take());
+  }
+
+  @Test
+  public void test_batch_stops_at_failure() throws InterruptedException, ExecutionException, TimeoutException {
+    doThrow(new IllegalStateException("Test Failure")).when(mockExoWrapper).skipForward();
+    when(mockExoWrapper.getCurrentMediaItem()).thenReturn(mockMediaItem);
+
+    ListenableFuture<SessionPlayer.PlayerResult> batch = coord.submitBatch(Arrays.asList(
+      coord.play(),
+      coord.skipToNextPlaylistItem(),
+      coord.pause()));
+
+    assertEquals(SessionPlayer.PlayerResult.RESULT_ERROR_UNKNOWN, batch.get(2, TimeUnit.SECONDS).getResultCode());
+    verify(mockExoWrapper).play();
+    verify(mockExoWrapper, never()).pause();
+  }
+
+  @Test
+  public void test_single_looper_success() throws InterruptedException, ExecutionException, TimeoutException {
+    TaskCoordinator single = new TaskCoordinator(mockContext, listener, fact, true);
+    ArrayBlockingQueue<String> looperResults = new ArrayBlockingQueue<>(10);
+
+    doAnswer((Answer<Void>) invocation -> {
+      looperResults.put("seek");
+      new Thread() {
+        public void run() { // simulate the wait for the callback by running on a separate thread
+          try {
+            Thread.sleep(10L);
+            single.onSeekCompleted(0);
+          } catch (InterruptedException e) {
+            e.printStackTrace();
+          }
+        }
+      }.start();
+      return null;
+    }).when(mockExoWrapper).seekTo(5L);
+
+    doAnswer((Answer<Void>) invocation -> {
+      looperResults.put("play");
+      return null;
+    }).when(mockExoWrapper).play();
+
+    when(mockExoWrapper.getCurrentMediaItem()).thenReturn(mockMediaItem);
+
+    ListenableFuture<SessionPlayer.PlayerResult> seekAndPlay = single.submit(single.seekTo(5L)
+      .flatMap(pr -> single.play()));
+
+    assertEquals(SessionPlayer.PlayerResult.RESULT_SUCCESS, seekAndPlay.get(2, TimeUnit.SECONDS).getResultCode());
+    assertEquals("seek", looperResults.take());
+    assertEquals("play", looperResults.take());
+    single.close();
+  }
+
+  @Test
+  public void test_executor_schedulers() throws InterruptedException, ExecutionException, TimeoutException {
+    ScheduledExecutorService pool = Executors.newScheduledThreadPool(4);
+    TaskCoordinator pooled = new TaskCoordinator(mockContext, listener, fact,
+      new ExecutorScheduler("task", pool), new ExecutorScheduler("exo", pool));
+    ArrayBlockingQueue<String> results = new ArrayBlockingQueue<>(10);
+
+    doAnswer((Answer<Void>) invocation -> {
+      results.put("seek");
+      pool.schedule(() -> pooled.onSeekCompleted(0), 10L, TimeUnit.MILLISECONDS);
+      return null;
+    }).when(mockExoWrapper).seekTo(5L);
+
+    doAnswer((Answer<Void>) invocation -> {
+      results.put("play");
+      return null;
+    }).when(mockExoWrapper).play();
+
+    when(mockExoWrapper.getCurrentMediaItem()).thenReturn(mockMediaItem);
+
+    ListenableFuture<SessionPlayer.PlayerResult> seekAndPlay = pooled.submit(pooled.seekTo(5L)
+      .flatMap(pr -> pooled.play()));
+
+    assertEquals(SessionPlayer.PlayerResult.RESULT_SUCCESS, seekAndPlay.get(2, TimeUnit.SECONDS).getResultCode());
+    assertEquals("seek", results.take());
+    assertEquals("play", results.take());
+    pooled.close();
+    pool.shutdown();
+  }
+
+  @Test
+  public void test_shared_looper_outlives_coordinator() throws InterruptedException, ExecutionException, TimeoutException {
+    HandlerThread thread = new HandlerThread("shared");
+    thread.start();
+    Scheduler forFirst = new LooperScheduler(thread.getLooper());
+    Scheduler forSecond = new LooperScheduler(thread.getLooper());
+    TaskCoordinator first = new TaskCoordinator(mockContext, listener, fact, forFirst, forFirst);
+    TaskCoordinator second = new TaskCoordinator(mockContext, listener, fact, forSecond, forSecond);
+    when(mockExoWrapper.getCurrentMediaItem()).thenReturn(mockMediaItem);
+
+    first.close(); // leaves the looper running for the other coordinator
+    assertEquals(SessionPlayer.PlayerResult.RESULT_SUCCESS, second.submit(second.setVolume(0.5f)).get(2, TimeUnit.SECONDS).getResultCode());
+
+    second.close();
+    thread.quit();
+  }
+
+  @Test
+  public void test_closed_pooled_player_drops_only_its_posts() throws InterruptedException, ExecutionException, TimeoutException {
+    HandlerThread thread = new HandlerThread("pool");
+    thread.start();
+    Scheduler forClosed = new LooperScheduler(thread.getLooper());
+    Scheduler forRunning = new LooperScheduler(thread.getLooper());
+    TaskCoordinator closed = new TaskCoordinator(mockContext, listener, fact, forClosed, forClosed);
+    TaskCoordinator running = new TaskCoordinator(mockContext, listener, fact, forRunning, forRunning);
+    when(mockExoWrapper.getCurrentMediaItem()).thenReturn(mockMediaItem);
+
+    ArrayBlockingQueue<String> ran = new ArrayBlockingQueue<>(10);
+    assertTrue(forClosed.postDelayed(() -> ran.add("closed"), 200L));
+    assertTrue(forRunning.postDelayed(() -> ran.add("running"), 200L));
+    closed.close();
+
+    assertFalse(forClosed.post(() -> ran.add("too late")));
+    assertFalse(forClosed.postAtFront(() -> ran.add("too late")));
+    assertEquals(SessionPlayer.PlayerResult.RESULT_SUCCESS, running.submit(running.setVolume(0.5f)).get(2, TimeUnit.SECONDS).getResultCode());
+    assertEquals("running", ran.poll(2, TimeUnit.SECONDS));
+    assertEquals(null, ran.poll(300L, TimeUnit.MILLISECONDS)); // the closed player's delayed post was dropped
+
+    running.close();
+    thread.quit();
+  }
+
+  @Test
+  public void test_async_reset_and_close() throws InterruptedException, ExecutionException, TimeoutException {
+    when(mockExoWrapper.getCurrentMediaItem()).thenReturn(mockMediaItem);
+
+    ListenableFuture<SessionPlayer.PlayerResult> prepare = coord.submit(coord.prepare()); // onPrepared never comes
+    ListenableFuture<Void> reset = coord.resetAsync();
+
+    reset.get(2, TimeUnit.SECONDS);
+    assertTrue(prepare.isCancelled());
+
+    ListenableFuture<Void> closed = coord.closeAsync();
+    assertSame(closed, coord.closeAsync());
+    closed.get(2, TimeUnit.SECONDS);
+    verify(mockExoWrapper).close();
+    verify(mockExoWrapper, times(2)).reset(); // once on creation, never again for close
+  }
+
+  @Test
+  public void test_query_async() throws InterruptedException, ExecutionException, TimeoutException {
+    PlayerSnapshot fresh = new PlayerSnapshot(10L, 20L, 100L, 1f, 0.5f, null, true, 100L, 0L);
+    when(mockExoWrapper.getSnapshot()).thenReturn(fresh);
+
+    assertSame(fresh, coord.queryAsync().get(2, TimeUnit.SECONDS));
+    verify(mockExoWrapper).publishState();
+  }
+
+  @Test
+  public void test_metrics_recorded() throws InterruptedException, ExecutionException, TimeoutException {
+    ArrayBlockingQueue<TaskMetrics> reports = new ArrayBlockingQueue<>(10);
+    coord.setMetricsListener(reports::add);
+    when(mockExoWrapper.getCurrentMediaItem()).thenReturn(mockMediaItem);
+
+    coord.submit(coord.setVolume(0.5f)).get(2, TimeUnit.SECONDS);
+
+    TaskMetrics metrics = reports.poll(2, TimeUnit.SECONDS);
+    assertSame(coord.getMetrics(), metrics);
+    assertEquals(1, metrics.getCount(TaskMetrics.OP_VOLUME, TaskMetrics.PHASE_QUEUE_WAIT));
+    assertEquals(1, metrics.getCount(TaskMetrics.OP_VOLUME, TaskMetrics.PHASE_EXECUTION));
+    assertEquals(1, metrics.getCount(TaskMetrics.OP_VOLUME, TaskMetrics.PHASE_COMPLETION));
+    assertEquals(0, metrics.getCount(TaskMetrics.OP_PLAY, TaskMetrics.PHASE_EXECUTION));
+    assertEquals(1, metrics.getQueueHighWaterMark());
+    assertTrue(metrics.getPercentileMicros(TaskMetrics.OP_VOLUME, TaskMetrics.PHASE_COMPLETION, 50) > 0);
+  }
+
+  @Test
+  public void test_looper_stall_reported() throws InterruptedException, ExecutionException, TimeoutException {
+    ArrayBlockingQueue<String> stalls = new ArrayBlockingQueue<>(10);
+    coord.setMetricsListener(new TaskMetrics.Listener() {
+      @Override
+      public void onTaskFinished(TaskMetrics metrics) {}
+
+      @Override
+      public void onLooperStalled(String looperName, long lagMs, String instruction) {
+        stalls.add(instruction);
+      }
+    });
+    coord.setStallThreshold(50);
+
+    doAnswer((Answer<Void>) invocation -> {
+      Thread.sleep(300); // holds up the exo looper
+      return null;
+    }).when(mockExoWrapper).setVolume(0.5f);
+
+    coord.submit(coord.setVolume(0.5f)).get(2, TimeUnit.SECONDS);
+
+    assertEquals("volume", stalls.poll(2, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void test_task_looper_stall_reported_while_stalled() throws InterruptedException, ExecutionException, TimeoutException {
+    ArrayBlockingQueue<String> stalls = new ArrayBlockingQueue<>(10);
+    coord.setMetricsListener(new TaskMetrics.Listener() {
+      @Override
+      public void onTaskFinished(TaskMetrics metrics) {}
+
+      @Override
+      public void onLooperStalled(String looperName, long lagMs, String instruction) {
+        stalls.add(instruction);
+      }
+    });
+    coord.setStallThreshold(50);
+
+    AtomicReference<String> seenWhileStalled = new AtomicReference<>();
+    coord.submit(coord.setVolume(0.5f).foreach(pr -> {
+      try {
+        seenWhileStalled.set(stalls.poll(2, TimeUnit.SECONDS)); // holds up the task looper until reported
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    })).get(3, TimeUnit.SECONDS);
+
+    assertEquals("volume", seenWhileStalled.get());
+  }
+
+  @Test
+  public void test_trace_sections() throws InterruptedException, ExecutionException, TimeoutException {
+    ArrayBlockingQueue<String> sections = new ArrayBlockingQueue<>(20);
+    coord.setTracer(new Tracer() {
+      @Override
+      public void beginSection(String name) {
+        sections.add(name);
+      }
+
+      @Override
+      public void endSection() {
+        sections.add("end");
+      }
+    });
+
+    coord.submit(coord.setVolume(0.5f)).get(2, TimeUnit.SECONDS);
+
+    List<String> traced = Arrays.asList(sections.toArray(new String[0]));
+    assertTrue(traced.contains("SMP2 task step"));
+    assertTrue(traced.contains("SMP2 volume"));
+    assertTrue(traced.indexOf("SMP2 volume") < traced.lastIndexOf("end"));
+  }
+
+  @Test
+  public void test_snapshot_read_success() {
+    when(mockExoWrapper.getSnapshot()).thenReturn(new PlayerSnapshot(10L, 0L, 100L, 1f, 1f, null, false, 100L, 0L));
     long pos = coord.getCurrentPosition();
     assertEquals(10L, pos);
+    verify(mockExoWrapper, never()).getCurrentPosition(); // never goes to the exo thread
   }
 
   @Test
   public void test_worst_case() throws InterruptedException, ExecutionException, TimeoutException {
     /*
-     * A task is started that has a blocking after effect. Two more tasks are added after that,
-     * and a blocking call is made at the end.
-     * The monads should keep the tasks well ordered, while the blocking calls can interject, jumping
-     * the line and being processed quickly.
+     * A task is started that reads player state as an after effect. Two more tasks are added after
+     * that, and another read is made at the end.
+     * The monads should keep the tasks well ordered, while the reads never touch the looper at all.
      *
-     * looper: task1 -> blocking1 -> blocking2 -> task2 -> task3
+     * looper: task1 -> task2 -> task3
      * executor: task1 -> task2 -> task3
      */
 
@@ -182,17 +605,7 @@ public class TaskCoordinatorTest {
       return null;
     }).when(mockExoWrapper).pause();
 
-    when(mockExoWrapper.getBufferedPosition()).then((Answer<Long>) invocation -> {
-      looperResults.put("blockingtask1 processing");
-      Thread.sleep(5L); // long running task
-      return 1L;
-    });
-
-    when(mockExoWrapper.getVolume()).then((Answer<Float>) invocation -> {
-      looperResults.put("blockingtask2 processing");
-      Log.d("testing", "VOLUME RETURN");
-      return 0.5f;
-    });
+    when(mockExoWrapper.getSnapshot()).thenReturn(new PlayerSnapshot(0L, 1L, 100L, 1f, 0.5f, null, false, 100L, 0L));
 
     when(mockExoWrapper.getCurrentMediaItem()).thenReturn(mockMediaItem);
 
@@ -200,8 +613,7 @@ public class TaskCoordinatorTest {
       .foreach(pr -> {
         try {
           Thread.sleep(5L); // give enough time for task2 to go on looper
-          Log.d("testing", "before gt buffered");
-          coord.getBufferedPosition(); // takes time to complete
+          assertEquals(1L, coord.getBufferedPosition());
           executorResults.put("task1 complete");
         } catch (InterruptedException e) {
           e.printStackTrace();
@@ -227,8 +639,7 @@ public class TaskCoordinatorTest {
       }));
 
     Thread.sleep(10L); // enough time for task2 to hit looper
-    Log.d("testing", "before volume");
-    coord.getVolume();
+    assertEquals(0.5f, coord.getVolume(), 0f);
 
     task1.get(10L, TimeUnit.SECONDS);
 
@@ -237,10 +648,11 @@ public class TaskCoordinatorTest {
     assertEquals("task3 wasn't third to complete", "task3 complete", executorResults.take());
 
     assertEquals("task1 wasn't first to process", "task1 processing", looperResults.take());
-    assertEquals("blockingtask1 wasn't second to process", "blockingtask1 processing", looperResults.take());
-    assertEquals("blockingtask2 wasn't third to process", "blockingtask2 processing", looperResults.take());
     assertEquals("task2 wasn't second to process", "task2 processing", looperResults.take());
-    assertEquals("task3 wasn't fifth to process", "task3 processing", looperResults.take());
+    assertEquals("task3 wasn't third to process", "task3 processing", looperResults.take());
+
+    verify(mockExoWrapper, never()).getBufferedPosition();
+    verify(mockExoWrapper, never()).getVolume();
 
   }
 
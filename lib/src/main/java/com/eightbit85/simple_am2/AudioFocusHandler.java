@@ -2,6 +2,11 @@ package com.eightbit85.simple_am2;
 
 public interface AudioFocusHandler {
 
+  /**
+   * Called on the exoplayer's thread as a play instruction runs, never for one that is skipped.
+   * ExoPlayer waits on it, so it should be quick.
+   * @return Whether the player may play, if not the play fails with RESULT_ERROR_PERMISSION_DENIED
+   */
   boolean onPlay();
   void close();
 
@@ -28,14 +28,22 @@ public class Bad<E, A> extends Either<E, A> {
     throw new UnsupportedOperationException("Cannot get underlying value of an Error, use getErrorValue instead.");
   }
 
+  /**
+   * A Bad holds no A, so it can stand in for a Bad of any value type rather than being copied.
+   */
+  @SuppressWarnings("unchecked")
+  public <B> Bad<E, B> retype() {
+    return (Bad<E, B>) this;
+  }
+
   @Override
   public <B> Either<E, B> map(Function<A, B> f) {
-    return new Bad<E, B>(value);
+    return retype();
   }
 
   @Override
   public <B> Either<E, B> flatMap(Function<A, Either<E, B>> fa) {
-    return new Bad<E, B>(value);
+    return retype();
   }
 
   @Override
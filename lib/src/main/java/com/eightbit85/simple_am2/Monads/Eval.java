@@ -10,6 +10,14 @@ public abstract class Eval<E, A> {
   public abstract Either<E, A> run();
   public abstract Eval<E, A> step();
 
+  /**
+   * @return False if stepping now would be too early, e.g. a Later whose result hasn't arrived yet.
+   * Only Parallel asks, to decide which of its branches to step.
+   */
+  public boolean isReady() {
+    return true;
+  }
+
   public static <E, T> Eval<E, T> pure(T t) {
     return new Now<>(new Good<>(t));
   }
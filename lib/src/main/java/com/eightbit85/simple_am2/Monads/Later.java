@@ -1,5 +1,6 @@
 package com.eightbit85.simple_am2.Monads;
 
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
@@ -7,9 +8,18 @@ import java.util.function.Supplier;
 public class Later<E, A> extends Eval<E, A> {
 
   private Supplier<Either<E, A>> r;
+  private final BooleanSupplier isReady;
 
   public Later(Supplier<Either<E, A>> op) {
+    this(op, () -> true);
+  }
+
+  /**
+   * @param isReady Whether op has its result yet, see isReady
+   */
+  public Later(Supplier<Either<E, A>> op, BooleanSupplier isReady) {
     this.r = op;
+    this.isReady = isReady;
   }
 
   @Override
@@ -22,6 +32,11 @@ public class Later<E, A> extends Eval<E, A> {
     return new Now<>(this.run());
   }
 
+  @Override
+  public boolean isReady() {
+    return isReady.getAsBoolean();
+  }
+
   @Override
   public boolean isLater() {
     return true;
@@ -32,18 +47,11 @@ public class Later<E, A> extends Eval<E, A> {
   }
 
   public <B> Eval<E, B> map(Function<A, B> f) {
-    return new Later<>(() -> this.run().map(f));
+    return new Later<>(() -> this.run().map(f), isReady);
   }
 
   public <B> Eval<E, B> flatMap(Function<A, Eval<E, B>> fa) {
-    return new Stepper<>(() -> {
-      Either<E, A> ea = this.run();
-      if (ea.isGood()) {
-        return fa.apply(ea.getValue());
-      } else {
-        return new Now<>(new Bad<>(ea.getErrorValue()));
-      }
-    });
+    return new Stepper<>(this, fa);
   }
 
   @Override
@@ -51,6 +59,6 @@ public class Later<E, A> extends Eval<E, A> {
     return new Later<>(() -> {
       Either<E, A> ea = this.run();
       return ea.foreach(f);
-    });
+    }, isReady);
   }
 }
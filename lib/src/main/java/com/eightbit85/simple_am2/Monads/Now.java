@@ -37,11 +37,12 @@ public class Now<E, A> extends Eval<E, A> {
   }
 
   @Override
+  @SuppressWarnings("unchecked")
   public <B> Eval<E, B> flatMap(Function<A, Eval<E, B>> fa) {
     if (this.r.isGood()) {
       return fa.apply(this.r.getValue());
     } else {
-      return new Now<>(new Bad<>(this.r.getErrorValue()));
+      return (Now<E, B>) (Now<E, ?>) this; // holds a Bad, which holds no A
     }
   }
 
@@ -0,0 +1,113 @@
+package com.eightbit85.simple_am2.Monads;
+
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Evals that have all been started and are waiting independently. Each step moves on whichever
+ * branch is ready, so the branches complete in whatever order they finish rather than one after
+ * another. Done once every branch is, or as soon as one of them is Bad.
+ */
+public class Parallel<E, A> extends Eval<E, A> {
+
+  private final Eval<E, ?>[] branches;
+  private final Function<Object[], A> combine;
+
+  private Parallel(Eval<E, ?>[] branches, Function<Object[], A> combine) {
+    this.branches = branches;
+    this.combine = combine;
+  }
+
+  /**
+   * @param branches Evals to wait on, already started
+   * @param combine Given the branches' values, in the same order, gives the overall value
+   * @return A Now if the branches are all done already, otherwise a Parallel
+   */
+  public static <E, A> Eval<E, A> of(Eval<E, ?>[] branches, Function<Object[], A> combine) {
+    return new Parallel<>(branches, combine).settle();
+  }
+
+  @SuppressWarnings("unchecked")
+  private Eval<E, A> settle() {
+    boolean isDone = true;
+    for (Eval<E, ?> branch : branches) {
+      if (!branch.isNow()) {
+        isDone = false;
+      } else if (!branch.run().isGood()) {
+        return (Eval<E, A>) (Eval<E, ?>) branch; // a Now holding a Bad, so it can be retyped
+      }
+    }
+    if (!isDone) return this;
+
+    Object[] values = new Object[branches.length];
+    for (int i = 0; i < branches.length; i++) values[i] = branches[i].run().getValue();
+    return new Now<>(new Good<>(combine.apply(values)));
+  }
+
+  @Override
+  public boolean isLater() {
+    return false;
+  }
+
+  @Override
+  public boolean isNow() {
+    return false;
+  }
+
+  @Override
+  public boolean isReady() {
+    for (Eval<E, ?> branch : branches) {
+      if (!branch.isNow() && branch.isReady()) return true;
+    }
+    return false;
+  }
+
+  @Override
+  public Either<E, A> run() {
+    Object[] values = new Object[branches.length];
+    for (int i = 0; i < branches.length; i++) {
+      Either<E, ?> ea = branches[i].run();
+      if (!ea.isGood()) return ((Bad<E, ?>) ea).retype();
+      values[i] = ea.getValue();
+    }
+    return new Good<>(combine.apply(values));
+  }
+
+  /**
+   * Steps the first branch that is ready, or the first that isn't done if none of them say so.
+   */
+  @Override
+  public Eval<E, A> step() {
+    int next = -1;
+    for (int i = 0; i < branches.length; i++) {
+      if (branches[i].isNow()) continue;
+      if (branches[i].isReady()) {
+        next = i;
+        break;
+      }
+      if (next < 0) next = i;
+    }
+
+    Eval<E, ?>[] stepped = branches.clone();
+    stepped[next] = branches[next].step();
+    return new Parallel<>(stepped, combine).settle();
+  }
+
+  @Override
+  public <B> Eval<E, B> map(Function<A, B> f) {
+    return new Stepper<E, B>(this, a -> new Now<>(new Good<>(f.apply(a))));
+  }
+
+  @Override
+  public <B> Eval<E, B> flatMap(Function<A, Eval<E, B>> fa) {
+    return new Stepper<E, B>(this, fa);
+  }
+
+  @Override
+  public Eval<E, A> foreach(Consumer<A> f) {
+    return new Stepper<E, A>(this, a -> {
+      f.accept(a);
+      return new Now<>(new Good<>(a));
+    });
+  }
+}
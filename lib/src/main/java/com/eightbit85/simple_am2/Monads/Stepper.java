@@ -1,15 +1,36 @@
 package com.eightbit85.simple_am2.Monads;
 
+import java.util.ArrayList;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
+/**
+ * An eval that takes more than one step. It's either a single step given as a supplier, or a bind:
+ * a source eval followed by a stack of continuations waiting on its value. Chains of flatMaps push
+ * onto the stack rather than nesting suppliers, and step and run walk it in a loop, so a chain of
+ * any length is evaluated in constant stack depth.
+ */
 public class Stepper<E, A> extends Eval<E, A> {
 
-  private Supplier<Eval<E, A>> morph;
+  private final Supplier<Eval<E, A>> morph; // null for a bind
+  private final Eval<E, ?> source;
+  private final Continuation continuations;
 
   public Stepper(Supplier<Eval<E, A>> step) {
     this.morph = step;
+    this.source = null;
+    this.continuations = null;
+  }
+
+  <X> Stepper(Eval<E, X> source, Function<X, Eval<E, A>> fa) {
+    this(source, new Continuation(fa, null));
+  }
+
+  private Stepper(Eval<E, ?> source, Continuation continuations) {
+    this.morph = null;
+    this.source = source;
+    this.continuations = continuations;
   }
 
   @Override
@@ -22,28 +43,92 @@ public class Stepper<E, A> extends Eval<E, A> {
     return false;
   }
 
+  @Override
+  public boolean isReady() {
+    Eval<E, ?> current = this;
+    while (current instanceof Stepper && ((Stepper<E, ?>) current).morph == null) {
+      current = ((Stepper<E, ?>) current).source;
+    }
+    return current == this || current.isReady();
+  }
+
   @Override
   public Either<E, A> run() {
-    return morph.get().run();
+    Eval<E, A> current = this;
+    while (!current.isNow()) current = current.step();
+    return current.run();
   }
 
+  /**
+   * Runs the first Later or supplier in the chain, then feeds its value through the continuations
+   * for as long as they give back Nows, as Now.flatMap would have.
+   */
   @Override
+  @SuppressWarnings("unchecked")
   public Eval<E, A> step() {
-    return morph.get();
+    Eval<E, Object> current = (Eval<E, Object>) (Eval<E, ?>) this;
+    Continuation pending = null;
+    while (current instanceof Stepper && ((Stepper<E, Object>) current).morph == null) {
+      Stepper<E, Object> bind = (Stepper<E, Object>) current;
+      pending = Continuation.prependAll(bind.continuations, pending);
+      current = (Eval<E, Object>) bind.source;
+    }
+
+    if (current.isLater()) {
+      current = new Now<>(current.run());
+    } else if (current instanceof Stepper) {
+      current = ((Stepper<E, Object>) current).morph.get();
+    } else if (!current.isNow()) {
+      current = current.step(); // e.g. a Parallel
+    }
+
+    while (pending != null && current.isNow()) {
+      Either<E, Object> ea = current.run();
+      if (!ea.isGood()) return (Eval<E, A>) (Eval<E, ?>) current; // short circuits the rest
+      current = (Eval<E, Object>) pending.fa.apply(ea.getValue());
+      pending = pending.next;
+    }
+    return pending == null ? (Eval<E, A>) current : new Stepper<E, A>(current, pending);
   }
 
   @Override
   public <B> Eval<E, B> map(Function<A, B> f) {
-    return new Stepper<E, B>(() -> this.morph.get().map(f));
+    return new Stepper<E, B>(this, a -> new Now<>(new Good<>(f.apply(a))));
   }
 
   @Override
   public <B> Eval<E, B> flatMap(Function<A, Eval<E, B>> fa) {
-    return new Stepper<E, B>(() -> this.morph.get().flatMap(fa));
+    return new Stepper<E, B>(this, fa);
   }
 
   @Override
   public Eval<E, A> foreach(Consumer<A> f) {
-    return new Stepper<>(() -> this.morph.get().foreach(f));
+    return new Stepper<E, A>(this, a -> {
+      f.accept(a);
+      return new Now<>(new Good<>(a));
+    });
+  }
+
+  /**
+   * Immutable stack of functions, the head is applied first. Being immutable, an eval can be run
+   * again after it has been stepped.
+   */
+  private static final class Continuation {
+    final Function<Object, ?> fa;
+    final Continuation next;
+
+    @SuppressWarnings("unchecked")
+    Continuation(Function<?, ?> fa, Continuation next) {
+      this.fa = (Function<Object, ?>) fa;
+      this.next = next;
+    }
+
+    static Continuation prependAll(Continuation first, Continuation then) {
+      if (then == null) return first;
+      ArrayList<Function<Object, ?>> fas = new ArrayList<>();
+      for (Continuation c = first; c != null; c = c.next) fas.add(c.fa);
+      for (int i = fas.size() - 1; i >= 0; i--) then = new Continuation(fas.get(i), then);
+      return then;
+    }
   }
 }
@@ -0,0 +1,65 @@
+package com.eightbit85.simple_am2;
+
+import android.content.Context;
+import android.os.HandlerThread;
+
+import androidx.annotation.NonNull;
+
+import com.eightbit85.simple_am2.internal.LooperScheduler;
+import com.eightbit85.simple_am2.internal.Scheduler;
+import com.eightbit85.simple_am2.internal.SharedResources;
+import com.google.android.exoplayer2.upstream.DefaultBandwidthMeter;
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lets several players share a fixed set of threads, along with their data source, extractor and
+ * bandwidth meter, rather than each player starting threads and building factories of its own.
+ * Players are handed out threads in turn, and each one runs its tasks and its exoplayer on the one
+ * thread, as with Builder.setSingleLooper. Close the players before the pool.
+ */
+public final class PlayerPool implements AutoCloseable {
+
+  private final HandlerThread[] threads;
+  private final SharedResources resources;
+  private final AtomicInteger nextThread;
+
+  /**
+   * @param threadCount How many threads the players share, at least 1
+   */
+  public PlayerPool(@NonNull Context context, int threadCount) {
+    Preconditions.checkArgument(threadCount > 0);
+    Context appContext = context.getApplicationContext();
+
+    threads = new HandlerThread[threadCount];
+    for (int i = 0; i < threadCount; i++) {
+      threads[i] = new HandlerThread("SimpleAudioPlayerPool-" + i);
+      threads[i].start();
+    }
+    resources = new SharedResources(appContext, "SimpleAudioPlayer", new DefaultBandwidthMeter.Builder(appContext).build());
+    nextThread = new AtomicInteger(0);
+  }
+
+  /**
+   * @return A new scheduler on the next thread in turn. Each player gets its own, so a player closing
+   * drops only its own posts and leaves the thread running for the others.
+   */
+  Scheduler nextScheduler() {
+    HandlerThread thread = threads[Math.floorMod(nextThread.getAndIncrement(), threads.length)];
+    return new LooperScheduler(thread.getLooper());
+  }
+
+  SharedResources getResources() {
+    return resources;
+  }
+
+  /**
+   * Stops the pool's threads. Any player still using them stops responding.
+   */
+  @Override
+  public void close() {
+    for (HandlerThread thread : threads) thread.quitSafely();
+  }
+
+}
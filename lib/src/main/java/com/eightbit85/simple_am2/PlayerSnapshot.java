@@ -0,0 +1,57 @@
+package com.eightbit85.simple_am2;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.RestrictTo;
+import androidx.media.AudioAttributesCompat;
+
+import static androidx.annotation.RestrictTo.Scope.LIBRARY_GROUP_PREFIX;
+
+/**
+ * Immutable view of the player's state. A new snapshot is published by the ExoPlayerWrapper on the
+ * exo thread whenever the state changes, so it can be read from any thread without blocking.
+ */
+public final class PlayerSnapshot {
+
+  @RestrictTo(LIBRARY_GROUP_PREFIX)
+  public static final PlayerSnapshot EMPTY = new PlayerSnapshot(0L, 0L, -1L, 1f, 1f, null, false, -1L, 0L);
+
+  public final long position;
+  public final long bufferedPosition;
+  public final long duration;
+  public final float playbackSpeed;
+  public final float volume;
+  public final @Nullable AudioAttributesCompat audioAttributes;
+  public final boolean isPlaying;
+  public final long maxPosition; // -1 if unknown
+  public final long capturedAt; // SystemClock.elapsedRealtime() when the position was read
+
+  @RestrictTo(LIBRARY_GROUP_PREFIX)
+  public PlayerSnapshot(long position, long bufferedPosition, long duration, float playbackSpeed, float volume,
+                        @Nullable AudioAttributesCompat audioAttributes, boolean isPlaying, long maxPosition,
+                        long capturedAt) {
+    this.position = position;
+    this.bufferedPosition = bufferedPosition;
+    this.duration = duration;
+    this.playbackSpeed = playbackSpeed;
+    this.volume = volume;
+    this.audioAttributes = audioAttributes;
+    this.isPlaying = isPlaying;
+    this.maxPosition = maxPosition;
+    this.capturedAt = capturedAt;
+  }
+
+  /**
+   * Works out where playback should be now, assuming it has carried on at the same speed since the
+   * snapshot was captured. The result is kept within the bounds of the current item (or clip).
+   * @param elapsedRealtime The current SystemClock.elapsedRealtime()
+   * @return Estimated playback position in ms
+   */
+  public long getPosition(long elapsedRealtime) {
+    if (!isPlaying) return position;
+
+    long pos = position + (long) ((elapsedRealtime - capturedAt) * playbackSpeed);
+    if (maxPosition >= 0 && pos > maxPosition) pos = maxPosition;
+    return Math.max(0, pos);
+  }
+
+}
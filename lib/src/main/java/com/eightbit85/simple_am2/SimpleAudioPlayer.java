@@ -7,7 +7,7 @@ import android.util.Log;
 import androidx.annotation.IntRange;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
-import androidx.collection.ArrayMap;
+import androidx.annotation.RestrictTo;
 import androidx.core.util.Pair;
 import androidx.media.AudioAttributesCompat;
 import androidx.media2.common.BaseResult;
@@ -16,6 +16,8 @@ import androidx.media2.common.MediaMetadata;
 import androidx.media2.common.SessionPlayer;
 
 import com.eightbit85.simple_am2.internal.ExoWrapperFactory;
+import com.eightbit85.simple_am2.internal.MediaTask;
+import com.eightbit85.simple_am2.internal.Scheduler;
 import com.eightbit85.simple_am2.internal.TaskCoordinator;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
@@ -26,6 +28,7 @@ import java.util.Map;
 import java.util.concurrent.Executor;
 import java.util.function.Function;
 
+import static androidx.annotation.RestrictTo.Scope.LIBRARY_GROUP_PREFIX;
 import static androidx.media2.common.BaseResult.RESULT_ERROR_BAD_VALUE;
 import static androidx.media2.common.BaseResult.RESULT_ERROR_INVALID_STATE;
 import static androidx.media2.common.BaseResult.RESULT_ERROR_IO;
@@ -59,25 +62,45 @@ public class SimpleAudioPlayer extends SessionPlayer implements TaskCoordinator.
 
   // Status code related
 
-  static ArrayMap<Integer, Integer> sResultCodeMap;
+  // Indexed by call status, CALL_STATUS_ERROR_UNKNOWN and anything else out of range is RESULT_ERROR_UNKNOWN
+  static final int[] sResultCodes = new int[TaskCoordinator.CALL_STATUS_REJECTED + 1];
   static {
-    sResultCodeMap = new ArrayMap<>();
-    sResultCodeMap.put(TaskCoordinator.CALL_STATUS_NO_ERROR, RESULT_SUCCESS);
-    sResultCodeMap.put(TaskCoordinator.CALL_STATUS_ERROR_UNKNOWN, RESULT_ERROR_UNKNOWN);
-    sResultCodeMap.put(TaskCoordinator.CALL_STATUS_INVALID_OPERATION, RESULT_ERROR_INVALID_STATE);
-    sResultCodeMap.put(TaskCoordinator.CALL_STATUS_BAD_VALUE, RESULT_ERROR_BAD_VALUE);
-    sResultCodeMap.put(TaskCoordinator.CALL_STATUS_PERMISSION_DENIED, RESULT_ERROR_PERMISSION_DENIED);
-    sResultCodeMap.put(TaskCoordinator.CALL_STATUS_ERROR_IO, RESULT_ERROR_IO);
-    sResultCodeMap.put(TaskCoordinator.CALL_STATUS_SKIPPED, RESULT_INFO_SKIPPED);
+    sResultCodes[TaskCoordinator.CALL_STATUS_NO_ERROR] = RESULT_SUCCESS;
+    sResultCodes[TaskCoordinator.CALL_STATUS_INVALID_OPERATION] = RESULT_ERROR_INVALID_STATE;
+    sResultCodes[TaskCoordinator.CALL_STATUS_BAD_VALUE] = RESULT_ERROR_BAD_VALUE;
+    sResultCodes[TaskCoordinator.CALL_STATUS_PERMISSION_DENIED] = RESULT_ERROR_PERMISSION_DENIED;
+    sResultCodes[TaskCoordinator.CALL_STATUS_ERROR_IO] = RESULT_ERROR_IO;
+    sResultCodes[TaskCoordinator.CALL_STATUS_SKIPPED] = RESULT_INFO_SKIPPED;
+    sResultCodes[TaskCoordinator.CALL_STATUS_TIMED_OUT] = RESULT_ERROR_IO; // closest there is
+    sResultCodes[TaskCoordinator.CALL_STATUS_REJECTED] = RESULT_ERROR_INVALID_STATE; // never run, the queue was full
+  }
+
+  SimpleAudioPlayer(@NonNull Context context, boolean singleLooper) {
+    this(context, singleLooper, null);
+  }
+
+  SimpleAudioPlayer(@NonNull Context context, boolean singleLooper, @Nullable PlayerPool pool) {
+    this(player -> {
+      if (pool != null) {
+        Scheduler scheduler = pool.nextScheduler();
+        return new TaskCoordinator(context.getApplicationContext(), player, ExoWrapperFactory.getSharedFactory(pool.getResources()), scheduler, scheduler);
+      } else {
+        return new TaskCoordinator(context.getApplicationContext(), player, ExoWrapperFactory.getDefaultFactory(), singleLooper);
+      }
+    });
   }
 
-  SimpleAudioPlayer(@NonNull Context context) {
-
-    taskCoordinator = new TaskCoordinator(context.getApplicationContext(), this, ExoWrapperFactory.getDefaultFactory());
+  /**
+   * Runs the player on a coordinator of the caller's making, such as one on simulated threads.
+   * @param coordinatorFactory Given the player, which the coordinator reports to, builds the coordinator
+   */
+  @RestrictTo(LIBRARY_GROUP_PREFIX)
+  public SimpleAudioPlayer(@NonNull Function<TaskCoordinator.BufferListener, TaskCoordinator> coordinatorFactory) {
+    taskCoordinator = coordinatorFactory.apply(this);
 
     lockForState = new Object();
 
-    reset();
+    resetState(); // the coordinator starts with a fresh exoplayer
   }
 
   // SimpleAudioPlayer Specifics
@@ -92,6 +115,21 @@ public class SimpleAudioPlayer extends SessionPlayer implements TaskCoordinator.
    */
   public void reset() {
     taskCoordinator.reset();
+    resetState();
+  }
+
+  /**
+   * Same as reset, but the teardown happens on the player's own threads so the caller isn't
+   * blocked. Queued commands are cancelled straight away.
+   * @return Future that completes once the player is back in its uninitialised state
+   */
+  public @NonNull ListenableFuture<Void> resetAsync() {
+    ListenableFuture<Void> done = taskCoordinator.resetAsync();
+    resetState();
+    return done;
+  }
+
+  private void resetState() {
     synchronized (lockForState) {
       state = SessionPlayer.PLAYER_STATE_IDLE;
       repeatMode = SessionPlayer.REPEAT_MODE_NONE;
@@ -153,40 +191,29 @@ public class SimpleAudioPlayer extends SessionPlayer implements TaskCoordinator.
   }
 
   @Override
-  public Integer convertStatus(int status) {
-    return sResultCodeMap.containsKey(status) ? sResultCodeMap.get(status) : RESULT_ERROR_UNKNOWN;
+  public int convertStatus(int status) {
+    return (status >= 0 && status < sResultCodes.length) ? sResultCodes[status] : RESULT_ERROR_UNKNOWN;
   }
 
   // SessionPlayer Implementation
 
   public @NonNull ListenableFuture<PlayerResult> play() {
-
-    if (audioFocusHandler == null || audioFocusHandler.onPlay()) {
-      return taskCoordinator.submit(taskCoordinator.play()
-        .foreach(pr -> changeState(SessionPlayer.PLAYER_STATE_PLAYING)));
-    }
-
-    SettableFuture<PlayerResult> fut = SettableFuture.create();
-    fut.set(new PlayerResult(PlayerResult.RESULT_ERROR_PERMISSION_DENIED, null)); // Was not allowed to play
-    return fut;
+    return taskCoordinator.submit(playTask());
   }
 
 
   public @NonNull ListenableFuture<PlayerResult> pause() {
-    return taskCoordinator.submit(taskCoordinator.pause()
-      .foreach(pr -> changeState(SessionPlayer.PLAYER_STATE_PAUSED)));
+    return taskCoordinator.submit(pauseTask());
   }
 
 
   public @NonNull ListenableFuture<PlayerResult> prepare() {
-    return taskCoordinator.submit(taskCoordinator.prepare()
-      .foreach(pr -> changeState(SessionPlayer.PLAYER_STATE_PAUSED)));
+    return taskCoordinator.submit(prepareTask());
   }
 
 
   public @NonNull ListenableFuture<PlayerResult> seekTo(long position) {
-    return taskCoordinator.submit(taskCoordinator.seekTo(position)
-      .foreach(pr -> notifySessionPlayerCallback(callback -> callback.onSeekCompleted(this, position))));
+    return taskCoordinator.submit(seekToTask(position));
   }
 
 
@@ -194,8 +221,7 @@ public class SimpleAudioPlayer extends SessionPlayer implements TaskCoordinator.
 
 
   public @NonNull ListenableFuture<PlayerResult> setAudioAttributes(@NonNull AudioAttributesCompat attributes) {
-    return taskCoordinator.submit(taskCoordinator.setAudioAttributes(attributes)
-      .foreach(pr -> notifySessionPlayerCallback(callback -> callback.onAudioAttributesChanged(this, attributes))));
+    return taskCoordinator.submit(setAudioAttributesTask(attributes));
   }
 
 
@@ -242,15 +268,7 @@ public class SimpleAudioPlayer extends SessionPlayer implements TaskCoordinator.
 
 
   public @NonNull ListenableFuture<PlayerResult> setPlaylist(@NonNull List<MediaItem> list, @Nullable MediaMetadata metadata) {
-    playlistMetaData = metadata;
-    currentSize = list.size();
-
-    return taskCoordinator.submit(taskCoordinator.setPlaylist(list)
-      .foreach(pr -> {
-        notifySessionPlayerCallback(callback -> callback.onPlaylistChanged(this, list, metadata));
-        onTrackChanged(pr.getMediaItem(), 0);
-      }
-    ));
+    return taskCoordinator.submit(setPlaylistTask(list, metadata));
   }
 
 
@@ -259,58 +277,53 @@ public class SimpleAudioPlayer extends SessionPlayer implements TaskCoordinator.
   }
 
 
-  public @NonNull ListenableFuture<PlayerResult> setMediaItem(@NonNull MediaItem item) {
-    playlistMetaData = null;
-    currentSize = 1;
+  /**
+   * Reads the position, buffered position, duration, speed, volume, audio attributes and playing
+   * state together, fresh from ExoPlayer and without blocking the caller.
+   * @return Future holding all of the values, captured at the same moment
+   */
+  public @NonNull ListenableFuture<PlayerSnapshot> queryAsync() {
+    return taskCoordinator.queryAsync();
+  }
 
-    return taskCoordinator.submit(taskCoordinator.setMediaItem(item)
-      .foreach(pr -> onTrackChanged(item, 0)));
+
+  public @NonNull ListenableFuture<PlayerResult> setMediaItem(@NonNull MediaItem item) {
+    return taskCoordinator.submit(setMediaItemTask(item));
   }
 
 
   public @NonNull ListenableFuture<PlayerResult> addPlaylistItem(int index, @NonNull MediaItem item) {
-    int i = Math.min(index, currentSize); // if index is greater than current size, put item on the end
-    return taskCoordinator.submit(taskCoordinator.addPlaylistItem(i, item)
-      .foreach(pr -> {
-        currentSize++;
-        notifySessionPlayerCallback(callback -> callback.onPlaylistChanged(this, taskCoordinator.getPlaylist(), playlistMetaData));
-      }));
+    return taskCoordinator.submit(addPlaylistItemTask(index, item));
   }
 
 
   public @NonNull ListenableFuture<PlayerResult> removePlaylistItem(@IntRange(from = 0) int index) {
-    return taskCoordinator.submit(taskCoordinator.removePlaylistItem(index)
-      .foreach(pr -> {
-        currentSize--;
-        notifySessionPlayerCallback(callback -> callback.onPlaylistChanged(this, taskCoordinator.getPlaylist(), playlistMetaData));
-      }));
+    return taskCoordinator.submit(removePlaylistItemTask(index));
   }
 
 
   public @NonNull ListenableFuture<PlayerResult> replacePlaylistItem(int index, @NonNull MediaItem item) {
-    return taskCoordinator.submit(taskCoordinator.replacePlaylistItem(index, item)
-      .foreach(pr -> notifySessionPlayerCallback(callback -> callback.onPlaylistChanged(this, taskCoordinator.getPlaylist(), playlistMetaData))));
+    return taskCoordinator.submit(replacePlaylistItemTask(index, item));
   }
 
 
   public @NonNull ListenableFuture<PlayerResult> movePlaylistItem(int from, int to) {
-    return taskCoordinator.submit(taskCoordinator.movePlaylistItem(to, from)
-      .foreach(pr -> notifySessionPlayerCallback(callback -> callback.onPlaylistChanged(this, taskCoordinator.getPlaylist(), playlistMetaData))));
+    return taskCoordinator.submit(movePlaylistItemTask(from, to));
   }
 
 
   public @NonNull ListenableFuture<PlayerResult> skipToPreviousPlaylistItem() {
-    return taskCoordinator.submit(taskCoordinator.skipToPreviousPlaylistItem());
+    return taskCoordinator.submit(skipToPreviousPlaylistItemTask());
   }
 
 
   public @NonNull ListenableFuture<PlayerResult> skipToNextPlaylistItem() {
-    return taskCoordinator.submit(taskCoordinator.skipToNextPlaylistItem());
+    return taskCoordinator.submit(skipToNextPlaylistItemTask());
   }
 
 
   public @NonNull ListenableFuture<PlayerResult> skipToPlaylistItem(@IntRange(from = 0) int index) {
-    return taskCoordinator.submit(taskCoordinator.skipToPlaylistItem(index));
+    return taskCoordinator.submit(skipToPlaylistItemTask(index));
   }
 
 
@@ -324,23 +337,12 @@ public class SimpleAudioPlayer extends SessionPlayer implements TaskCoordinator.
 
 
   public @NonNull ListenableFuture<PlayerResult> setRepeatMode(@RepeatMode int mode) {
-    repeatMode = (mode == SessionPlayer.REPEAT_MODE_GROUP) ? 2 : mode;
-    return taskCoordinator.submit(taskCoordinator.setRepeatMode(repeatMode)
-      .foreach(pr -> notifySessionPlayerCallback(callback -> callback.onRepeatModeChanged(this, repeatMode))));
+    return taskCoordinator.submit(setRepeatModeTask(mode));
   }
 
 
   public @NonNull ListenableFuture<PlayerResult> setShuffleMode(@ShuffleMode int mode) {
-    if (mode != shuffleMode) {
-      shuffleMode = mode;
-      boolean enable = shuffleMode != SessionPlayer.SHUFFLE_MODE_NONE;
-      return taskCoordinator.submit(taskCoordinator.setShuffleMode(enable)
-        .foreach(pr -> notifySessionPlayerCallback(callback -> callback.onShuffleModeChanged(this, shuffleMode))));
-    }
-
-    SettableFuture<PlayerResult> fut = SettableFuture.create();
-    fut.set(new PlayerResult(PlayerResult.RESULT_SUCCESS, null)); // No need to consider it an error, operation was a success, it just didn't change anything
-    return fut;
+    return taskCoordinator.submit(setShuffleModeTask(mode));
   }
 
 
@@ -413,21 +415,209 @@ public class SimpleAudioPlayer extends SessionPlayer implements TaskCoordinator.
 
 
   public @NonNull ListenableFuture<PlayerResult> setVolume(float volume) {
-    return taskCoordinator.submit(taskCoordinator.setVolume(volume));
+    return taskCoordinator.submit(setVolumeTask(volume));
   }
 
   public float getVolume() {
     return taskCoordinator.getVolume();
   }
 
+  // Health
+
+  /**
+   * A prepare or seek that gets no response from ExoPlayer fails with RESULT_ERROR_IO after a while,
+   * rather than holding up everything behind it. This counts how many times that has happened.
+   * @return Number of commands that have timed out since the player was created
+   */
+  public int getStallCount() {
+    return taskCoordinator.getStallCount();
+  }
+
+  /**
+   * @return Number of commands turned away because the queue was full, see Builder.setQueueCapacity
+   */
+  public long getRejectedCommandCount() {
+    return taskCoordinator.getRejectedTaskCount();
+  }
+
+  /**
+   * @return Number of queued commands pushed out by newer ones, see Builder.setQueueCapacity
+   */
+  public long getDroppedCommandCount() {
+    return taskCoordinator.getDroppedTaskCount();
+  }
+
+  // Batching
+
+  /**
+   * Runs several commands as one unit, e.g. when restoring a session. Commands that complete
+   * straight away run back to back without returning to the task thread in between, so this is
+   * much cheaper than submitting them one at a time. The batch stops at the first failure, though a
+   * command that completes straight away can be run ahead of an earlier one it doesn't touch the
+   * same parts of the player as, e.g. a volume change ahead of a seek, and then runs even if that
+   * one fails.
+   * <pre>
+   *   player.submitBatch(Arrays.asList(
+   *     player.setPlaylistTask(items, metadata),
+   *     player.prepareTask(),
+   *     player.seekToTask(position),
+   *     player.playTask()));
+   * </pre>
+   * @param tasks Tasks built with the *Task methods below (or any other MediaTask), in order
+   * @return Future holding the result of the last task, or of the first one to fail
+   */
+  public @NonNull ListenableFuture<PlayerResult> submitBatch(@NonNull List<MediaTask<Integer, PlayerResult>> tasks) {
+    return taskCoordinator.submitBatch(tasks);
+  }
+
+  // The *Task methods only build tasks, anything they change on the player happens as the task runs,
+  // so a task that is never submitted, or is skipped, leaves the player as it was
+
+  public @NonNull MediaTask<Integer, PlayerResult> playTask() {
+    return taskCoordinator.play(this::requestAudioFocus) // fails as not permitted if focus is refused
+      .foreach(pr -> changeState(SessionPlayer.PLAYER_STATE_PLAYING));
+  }
+
+  private boolean requestAudioFocus() {
+    AudioFocusHandler handler = audioFocusHandler;
+    return handler == null || handler.onPlay();
+  }
+
+  public @NonNull MediaTask<Integer, PlayerResult> pauseTask() {
+    return taskCoordinator.pause()
+      .foreach(pr -> changeState(SessionPlayer.PLAYER_STATE_PAUSED));
+  }
+
+  public @NonNull MediaTask<Integer, PlayerResult> prepareTask() {
+    return taskCoordinator.prepare()
+      .foreach(pr -> changeState(SessionPlayer.PLAYER_STATE_PAUSED));
+  }
+
+  public @NonNull MediaTask<Integer, PlayerResult> seekToTask(long position) {
+    return taskCoordinator.seekTo(position)
+      .foreach(pr -> notifySessionPlayerCallback(callback -> callback.onSeekCompleted(this, position)));
+  }
+
+  public @NonNull MediaTask<Integer, PlayerResult> setAudioAttributesTask(@NonNull AudioAttributesCompat attributes) {
+    return taskCoordinator.setAudioAttributes(attributes)
+      .foreach(pr -> notifySessionPlayerCallback(callback -> callback.onAudioAttributesChanged(this, attributes)));
+  }
+
+  public @NonNull MediaTask<Integer, PlayerResult> setPlaylistTask(@NonNull List<MediaItem> list, @Nullable MediaMetadata metadata) {
+    return taskCoordinator.setPlaylist(list)
+      .foreach(pr -> {
+        synchronized (lockForState) {
+          playlistMetaData = metadata;
+          currentSize = list.size();
+        }
+        notifySessionPlayerCallback(callback -> callback.onPlaylistChanged(this, list, metadata));
+        onTrackChanged(pr.getMediaItem(), 0);
+      });
+  }
+
+  public @NonNull MediaTask<Integer, PlayerResult> setMediaItemTask(@NonNull MediaItem item) {
+    return taskCoordinator.setMediaItem(item)
+      .foreach(pr -> {
+        synchronized (lockForState) {
+          playlistMetaData = null;
+          currentSize = 1;
+        }
+        onTrackChanged(item, 0);
+      });
+  }
+
+  public @NonNull MediaTask<Integer, PlayerResult> addPlaylistItemTask(int index, @NonNull MediaItem item) {
+    int i = Math.min(index, currentSize); // if index is greater than current size, put item on the end
+    return taskCoordinator.addPlaylistItem(i, item)
+      .foreach(pr -> {
+        synchronized (lockForState) {
+          currentSize++;
+        }
+        notifySessionPlayerCallback(callback -> callback.onPlaylistChanged(this, taskCoordinator.getPlaylist(), playlistMetaData));
+      });
+  }
+
+  public @NonNull MediaTask<Integer, PlayerResult> removePlaylistItemTask(@IntRange(from = 0) int index) {
+    return taskCoordinator.removePlaylistItem(index)
+      .foreach(pr -> {
+        synchronized (lockForState) {
+          currentSize--;
+        }
+        notifySessionPlayerCallback(callback -> callback.onPlaylistChanged(this, taskCoordinator.getPlaylist(), playlistMetaData));
+      });
+  }
+
+  public @NonNull MediaTask<Integer, PlayerResult> replacePlaylistItemTask(int index, @NonNull MediaItem item) {
+    return taskCoordinator.replacePlaylistItem(index, item)
+      .foreach(pr -> notifySessionPlayerCallback(callback -> callback.onPlaylistChanged(this, taskCoordinator.getPlaylist(), playlistMetaData)));
+  }
+
+  public @NonNull MediaTask<Integer, PlayerResult> movePlaylistItemTask(int from, int to) {
+    return taskCoordinator.movePlaylistItem(to, from)
+      .foreach(pr -> notifySessionPlayerCallback(callback -> callback.onPlaylistChanged(this, taskCoordinator.getPlaylist(), playlistMetaData)));
+  }
+
+  public @NonNull MediaTask<Integer, PlayerResult> skipToPreviousPlaylistItemTask() {
+    return taskCoordinator.skipToPreviousPlaylistItem();
+  }
+
+  public @NonNull MediaTask<Integer, PlayerResult> skipToNextPlaylistItemTask() {
+    return taskCoordinator.skipToNextPlaylistItem();
+  }
+
+  public @NonNull MediaTask<Integer, PlayerResult> skipToPlaylistItemTask(@IntRange(from = 0) int index) {
+    return taskCoordinator.skipToPlaylistItem(index);
+  }
+
+  public @NonNull MediaTask<Integer, PlayerResult> setRepeatModeTask(@RepeatMode int mode) {
+    int newMode = (mode == SessionPlayer.REPEAT_MODE_GROUP) ? 2 : mode;
+    return taskCoordinator.setRepeatMode(newMode)
+      .foreach(pr -> {
+        synchronized (lockForState) {
+          repeatMode = newMode;
+        }
+        notifySessionPlayerCallback(callback -> callback.onRepeatModeChanged(this, newMode));
+      });
+  }
+
+  public @NonNull MediaTask<Integer, PlayerResult> setShuffleModeTask(@ShuffleMode int mode) {
+    boolean enable = mode != SessionPlayer.SHUFFLE_MODE_NONE;
+    return taskCoordinator.setShuffleMode(enable) // harmless if it's unchanged, only a change is reported
+      .foreach(pr -> {
+        boolean isChanged;
+        synchronized (lockForState) {
+          isChanged = shuffleMode != mode;
+          shuffleMode = mode;
+        }
+        if (isChanged) notifySessionPlayerCallback(callback -> callback.onShuffleModeChanged(this, mode));
+      });
+  }
+
+  public @NonNull MediaTask<Integer, PlayerResult> setVolumeTask(float volume) {
+    return taskCoordinator.setVolume(volume);
+  }
+
   @Override
   public void close() {
     super.close();
-    reset();
+    resetState();
     synchronized (lockForState) {
       if (audioFocusHandler != null) audioFocusHandler.close();
-      taskCoordinator.close();
     }
+    taskCoordinator.close(); // cancels everything, no need to reset the exoplayer first
+  }
+
+  /**
+   * Same as close, but the exoplayer is released on its own thread so the caller isn't blocked.
+   * @return Future that completes once everything has been released
+   */
+  public @NonNull ListenableFuture<Void> closeAsync() {
+    super.close();
+    resetState();
+    synchronized (lockForState) {
+      if (audioFocusHandler != null) audioFocusHandler.close();
+    }
+    return taskCoordinator.closeAsync();
   }
 
   // Builder
@@ -439,6 +629,13 @@ public class SimpleAudioPlayer extends SessionPlayer implements TaskCoordinator.
     private Executor ec;
     private PlayerCallback cb;
     private boolean hasCb;
+    private boolean singleLooper;
+    private TaskMetrics.Listener metricsListener;
+    private long stallThresholdMs;
+    private Tracer tracer;
+    private int queueCapacity;
+    private PlayerPool pool;
+    private @TaskCoordinator.OverflowPolicy int overflowPolicy;
 
     public Builder(Context context) {
       ctx = context;
@@ -459,8 +656,81 @@ public class SimpleAudioPlayer extends SessionPlayer implements TaskCoordinator.
       return this;
     }
 
+    /**
+     * Runs the player's tasks on the same thread as ExoPlayer, rather than on a thread of their own.
+     * Commands complete with fewer context switches and each player uses one less thread, but
+     * callbacks from ExoPlayer have to wait while a task's side-effects are running.
+     */
+    @NonNull
+    public SimpleAudioPlayer.Builder setSingleLooper(boolean enabled) {
+      singleLooper = enabled;
+      return this;
+    }
+
+    /**
+     * Records how long commands spend queued, running on ExoPlayer's thread and waiting to complete,
+     * and passes the figures to the listener each time a command finishes.
+     */
+    @NonNull
+    public SimpleAudioPlayer.Builder setMetricsListener(TaskMetrics.Listener listener) {
+      metricsListener = listener;
+      return this;
+    }
+
+    /**
+     * Watches the player's threads and reports any that stay busy for longer than the threshold,
+     * along with the command that was running, through the metrics listener (and the log).
+     */
+    @NonNull
+    public SimpleAudioPlayer.Builder setLooperStallThreshold(long thresholdMs) {
+      stallThresholdMs = thresholdMs;
+      return this;
+    }
+
+    /**
+     * Where to write trace sections for each command and the work behind it. Defaults to the
+     * system trace, use Tracer.NONE to turn tracing off.
+     */
+    @NonNull
+    public SimpleAudioPlayer.Builder setTracer(@NonNull Tracer tracer) {
+      this.tracer = tracer;
+      return this;
+    }
+
+    /**
+     * Runs the player on one of the pool's threads and shares the pool's factories, rather than it
+     * starting threads of its own. Takes the place of setSingleLooper.
+     */
+    @NonNull
+    public SimpleAudioPlayer.Builder setPlayerPool(@NonNull PlayerPool pool) {
+      this.pool = pool;
+      return this;
+    }
+
+    /**
+     * Limits how many commands can be waiting to start, so a misbehaving controller can't queue them
+     * up without end. Commands that don't fit complete with RESULT_ERROR_INVALID_STATE without being
+     * run and leave the player as it was. One dropped by OVERFLOW_COALESCE completes with
+     * RESULT_INFO_SKIPPED instead, the same as any other superseded command.
+     * @param capacity Most commands that can be waiting at once
+     * @param policy TaskCoordinator.OVERFLOW_REJECT turns away the new command,
+     *               OVERFLOW_DROP_OLDEST drops the oldest waiting one, and OVERFLOW_COALESCE drops
+     *               a waiting one the new one supersedes, such as an earlier seek or volume change,
+     *               or turns away the new one if there isn't one
+     */
+    @NonNull
+    public SimpleAudioPlayer.Builder setQueueCapacity(int capacity, @TaskCoordinator.OverflowPolicy int policy) {
+      queueCapacity = capacity;
+      overflowPolicy = policy;
+      return this;
+    }
+
     public SimpleAudioPlayer build() {
-      SimpleAudioPlayer plyr = new SimpleAudioPlayer(ctx);
+      SimpleAudioPlayer plyr = new SimpleAudioPlayer(ctx, singleLooper, pool);
+      if (metricsListener != null) plyr.taskCoordinator.setMetricsListener(metricsListener);
+      if (stallThresholdMs > 0) plyr.taskCoordinator.setStallThreshold(stallThresholdMs);
+      if (tracer != null) plyr.taskCoordinator.setTracer(tracer);
+      if (queueCapacity > 0) plyr.taskCoordinator.setQueueCapacity(queueCapacity, overflowPolicy);
       if (focusFactory != null)  plyr.registerFocusHandler(focusFactory.apply(plyr));
       if (hasCb) plyr.registerPlayerCallback(ec, cb);
       return plyr;
@@ -0,0 +1,179 @@
+package com.eightbit85.simple_am2;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.RestrictTo;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static androidx.annotation.RestrictTo.Scope.LIBRARY_GROUP_PREFIX;
+
+/**
+ * Latency histograms for the coordinator's instructions, along with a few counters. Everything is
+ * allocated up front and recorded with atomic increments, so it's cheap enough to leave on.
+ * Buckets are powers of two in microseconds, bucket i holds durations below 2^(i+1) us.
+ */
+public final class TaskMetrics {
+
+  public interface Listener {
+    /**
+     * Called on one of the player's threads each time a task finishes, so keep it quick. The same
+     * TaskMetrics is passed every time and carries on updating, copy out anything you want to keep.
+     */
+    void onTaskFinished(TaskMetrics metrics);
+
+    /**
+     * Called when one of the player's loopers has been unresponsive for longer than the stall
+     * threshold, see SimpleAudioPlayer.Builder.setLooperStallThreshold.
+     * @param looperName Name of the thread that stalled
+     * @param lagMs How late the looper was, so far, in getting to its next message
+     * @param instruction Name of the instruction most recently started on that looper
+     */
+    default void onLooperStalled(String looperName, long lagMs, String instruction) {}
+  }
+
+  // Instruction kinds
+  public static final int OP_PLAY = 0;
+  public static final int OP_PAUSE = 1;
+  public static final int OP_PREPARE = 2;
+  public static final int OP_SEEK = 3;
+  public static final int OP_SKIP = 4;
+  public static final int OP_PLAYLIST = 5;
+  public static final int OP_VOLUME = 6;
+  public static final int OP_ATTRIBUTES = 7;
+  public static final int OP_MODES = 8;
+  public static final int OP_COUNT = 9;
+  private static final String[] OP_NAMES = {
+    "play", "pause", "prepare", "seek", "skip", "playlist", "volume", "attributes", "modes"};
+  @IntDef(flag = false, value = {
+    OP_PLAY,
+    OP_PAUSE,
+    OP_PREPARE,
+    OP_SEEK,
+    OP_SKIP,
+    OP_PLAYLIST,
+    OP_VOLUME,
+    OP_ATTRIBUTES,
+    OP_MODES})
+  @Retention(RetentionPolicy.SOURCE)
+  public @interface Op {}
+
+  // Phases - queued until its task starts, running on the exo thread, and until its result is known
+  public static final int PHASE_QUEUE_WAIT = 0;
+  public static final int PHASE_EXECUTION = 1;
+  public static final int PHASE_COMPLETION = 2;
+  public static final int PHASE_COUNT = 3;
+  @IntDef(flag = false, value = {
+    PHASE_QUEUE_WAIT,
+    PHASE_EXECUTION,
+    PHASE_COMPLETION})
+  @Retention(RetentionPolicy.SOURCE)
+  public @interface Phase {}
+
+  public static final int BUCKET_COUNT = 25; // the last bucket holds anything over 16s
+
+  private final AtomicLongArray buckets;
+  private final AtomicLongArray counts;
+  private final AtomicLongArray totals; // us
+  private final AtomicLong queueHighWaterMark;
+  private final AtomicLong blockingCalls;
+
+  @RestrictTo(LIBRARY_GROUP_PREFIX)
+  public TaskMetrics() {
+    buckets = new AtomicLongArray(OP_COUNT * PHASE_COUNT * BUCKET_COUNT);
+    counts = new AtomicLongArray(OP_COUNT * PHASE_COUNT);
+    totals = new AtomicLongArray(OP_COUNT * PHASE_COUNT);
+    queueHighWaterMark = new AtomicLong();
+    blockingCalls = new AtomicLong();
+  }
+
+  // Recording
+
+  @RestrictTo(LIBRARY_GROUP_PREFIX)
+  public void record(@Op int op, @Phase int phase, long nanos) {
+    long micros = Math.max(0, nanos / 1000);
+    int bucket = Math.min(BUCKET_COUNT - 1, 63 - Long.numberOfLeadingZeros(micros | 1));
+    int series = op * PHASE_COUNT + phase;
+
+    buckets.incrementAndGet(series * BUCKET_COUNT + bucket);
+    counts.incrementAndGet(series);
+    totals.addAndGet(series, micros);
+  }
+
+  @RestrictTo(LIBRARY_GROUP_PREFIX)
+  public void recordQueueDepth(int depth) {
+    long high;
+    while (depth > (high = queueHighWaterMark.get())) {
+      if (queueHighWaterMark.compareAndSet(high, depth)) return;
+    }
+  }
+
+  @RestrictTo(LIBRARY_GROUP_PREFIX)
+  public void recordBlockingCall() {
+    blockingCalls.incrementAndGet();
+  }
+
+  // Reading
+
+  /**
+   * @return Name of the instruction kind, or "none" for anything else
+   */
+  public static String getOpName(int op) {
+    return (op >= 0 && op < OP_COUNT) ? OP_NAMES[op] : "none";
+  }
+
+  public long getCount(@Op int op, @Phase int phase) {
+    return counts.get(op * PHASE_COUNT + phase);
+  }
+
+  public long getBucketCount(@Op int op, @Phase int phase, int bucket) {
+    return buckets.get((op * PHASE_COUNT + phase) * BUCKET_COUNT + bucket);
+  }
+
+  /**
+   * @return Exclusive upper bound of the bucket in us, or Long.MAX_VALUE for the last one
+   */
+  public static long getBucketLimitMicros(int bucket) {
+    return bucket == BUCKET_COUNT - 1 ? Long.MAX_VALUE : 2L << bucket;
+  }
+
+  public long getMeanMicros(@Op int op, @Phase int phase) {
+    int series = op * PHASE_COUNT + phase;
+    long count = counts.get(series);
+    return count == 0 ? 0 : totals.get(series) / count;
+  }
+
+  /**
+   * @param percentile Between 0 and 100
+   * @return Upper bound of the bucket the percentile falls in, in us, or 0 if nothing was recorded
+   */
+  public long getPercentileMicros(@Op int op, @Phase int phase, double percentile) {
+    long count = getCount(op, phase);
+    if (count == 0) return 0;
+
+    long target = (long) Math.ceil(count * percentile / 100d);
+    long seen = 0;
+    for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+      seen += getBucketCount(op, phase, bucket);
+      if (seen >= Math.max(1, target)) return getBucketLimitMicros(bucket);
+    }
+    return getBucketLimitMicros(BUCKET_COUNT - 1);
+  }
+
+  /**
+   * @return The most tasks that have been queued (not yet started) at once
+   */
+  public long getQueueHighWaterMark() {
+    return queueHighWaterMark.get();
+  }
+
+  /**
+   * @return How many times a caller has blocked waiting on the exo thread
+   */
+  public long getBlockingCallCount() {
+    return blockingCalls.get();
+  }
+
+}
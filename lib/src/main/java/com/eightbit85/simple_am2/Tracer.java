@@ -0,0 +1,42 @@
+package com.eightbit85.simple_am2;
+
+import android.os.Trace;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Begin/end sections around the coordinator's instructions, task steps and the heavier exo calls.
+ * Sections nest and must be ended on the thread that began them. Section names are constants, so
+ * tracing allocates nothing, and the default costs no more than android.os.Trace's own enabled
+ * check when nothing is capturing.
+ */
+public interface Tracer {
+
+  void beginSection(@NonNull String name);
+
+  void endSection();
+
+  /**
+   * Writes sections to the system trace, so they show up in systrace and perfetto.
+   */
+  Tracer SYSTEM = new Tracer() {
+    @Override
+    public void beginSection(@NonNull String name) {
+      Trace.beginSection(name);
+    }
+
+    @Override
+    public void endSection() {
+      Trace.endSection();
+    }
+  };
+
+  Tracer NONE = new Tracer() {
+    @Override
+    public void beginSection(@NonNull String name) {}
+
+    @Override
+    public void endSection() {}
+  };
+
+}
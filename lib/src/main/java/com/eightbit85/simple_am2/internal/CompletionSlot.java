@@ -0,0 +1,45 @@
+package com.eightbit85.simple_am2.internal;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Holds the outcome of a single instruction. Each step of a MediaPlayerTask gets its own slot, so a
+ * late or unexpected callback can only ever resolve the instruction it was correlated with.
+ */
+class CompletionSlot {
+
+  final TaskCoordinator.MediaPlayerTask owner;
+  private final AtomicBoolean isResolved;
+  private volatile int status;
+  int correlationId; // id of the exo request being waited on, only touched on the exo thread
+  long deadline; // task scheduler's uptimeMillis() by which the callback should have come, set before it's watched
+  int opsSucceeded; // how many of the instructions' ops returned without error, set on the exo thread before it resolves
+
+  CompletionSlot(TaskCoordinator.MediaPlayerTask owner) {
+    this.owner = owner;
+    this.isResolved = new AtomicBoolean(false);
+    this.status = TaskCoordinator.CALL_STATUS_NO_ERROR;
+  }
+
+  /**
+   * Records the outcome and lets the owning task move on to its next step. Only the first call has
+   * any effect, later ones are ignored.
+   * @param status CallStatus of the instruction
+   * @return True if this call resolved the slot
+   */
+  boolean resolve(@TaskCoordinator.CallStatus int status) {
+    if (!isResolved.compareAndSet(false, true)) return false;
+    this.status = status;
+    owner.sendCompleteNotification();
+    return true;
+  }
+
+  boolean isResolved() {
+    return isResolved.get();
+  }
+
+  @TaskCoordinator.CallStatus int getStatus() {
+    return status;
+  }
+
+}
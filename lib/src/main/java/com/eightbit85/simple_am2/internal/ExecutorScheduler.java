@@ -0,0 +1,204 @@
+package com.eightbit85.simple_am2.internal;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RestrictTo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static androidx.annotation.RestrictTo.Scope.LIBRARY_GROUP_PREFIX;
+
+/**
+ * Scheduler that runs on any Executor, so a coordinator can be driven off Android. Runnables are
+ * kept in a queue of its own and drained one at a time, so they stay serial however many threads
+ * the executor has, and many schedulers can share one executor. Each turn on the executor runs a
+ * limited number of runnables, to leave room for the others.
+ *
+ * Only usable with an ExoPlayerWrapper that doesn't need a looper, such as a fake.
+ */
+@RestrictTo(LIBRARY_GROUP_PREFIX)
+public final class ExecutorScheduler implements Scheduler {
+
+  private static final int RUNS_PER_TURN = 64;
+
+  private final String name;
+  private final Executor executor;
+  private final ScheduledExecutorService timer;
+  private final Runnable tokenForDrain;
+
+  // Guarded by lock
+  private final Object lock = new Object();
+  private final ArrayDeque<Runnable> queue;
+  private final IdentityHashMap<Runnable, List<DelayedPost>> delayed;
+  private boolean isDraining;
+  private boolean isQuit;
+
+  private volatile Thread drainingThread; // the thread running a turn, if there is one
+
+  public ExecutorScheduler(@NonNull String name, @NonNull ScheduledExecutorService executor) {
+    this(name, executor, executor);
+  }
+
+  /**
+   * @param executor Runs the runnables
+   * @param timer Only used to wait out delays, the runnables themselves are handed to executor
+   */
+  public ExecutorScheduler(@NonNull String name, @NonNull Executor executor, @NonNull ScheduledExecutorService timer) {
+    this.name = name;
+    this.executor = executor;
+    this.timer = timer;
+    this.tokenForDrain = this::drain;
+    this.queue = new ArrayDeque<>();
+    this.delayed = new IdentityHashMap<>();
+  }
+
+  @Override
+  public boolean post(Runnable runnable) {
+    return enqueue(runnable, false);
+  }
+
+  @Override
+  public boolean postAtFront(Runnable runnable) {
+    return enqueue(runnable, true);
+  }
+
+  @Override
+  public boolean postDelayed(Runnable runnable, long delayMs) {
+    if (delayMs <= 0) return post(runnable);
+
+    synchronized (lock) {
+      if (isQuit) return false;
+      DelayedPost post = new DelayedPost(runnable);
+      delayed.computeIfAbsent(runnable, r -> new ArrayList<>(1)).add(post);
+      try {
+        post.future = timer.schedule(post, delayMs, TimeUnit.MILLISECONDS); // can't fire until the lock is released
+      } catch (RejectedExecutionException e) {
+        forget(post);
+        return false;
+      }
+      return true;
+    }
+  }
+
+  @Override
+  public void remove(Runnable runnable) {
+    synchronized (lock) {
+      queue.removeIf(r -> r == runnable);
+      List<DelayedPost> posts = delayed.remove(runnable);
+      if (posts != null) {
+        for (DelayedPost post : posts) post.future.cancel(false);
+      }
+    }
+  }
+
+  @Override
+  public boolean isCurrentThread() {
+    return drainingThread == Thread.currentThread();
+  }
+
+  @Override
+  public long uptimeMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Drops everything pending. The executor is left alone, it may be shared.
+   */
+  @Override
+  public void quit() {
+    synchronized (lock) {
+      isQuit = true;
+      queue.clear();
+      for (List<DelayedPost> posts : delayed.values()) {
+        for (DelayedPost post : posts) post.future.cancel(false);
+      }
+      delayed.clear();
+    }
+  }
+
+  private boolean enqueue(Runnable runnable, boolean atFront) {
+    boolean isStarting;
+    synchronized (lock) {
+      if (isQuit) return false;
+      if (atFront) {
+        queue.addFirst(runnable);
+      } else {
+        queue.addLast(runnable);
+      }
+      isStarting = !isDraining;
+      isDraining = true;
+    }
+
+    if (isStarting) submitTurn();
+    return true;
+  }
+
+  private void submitTurn() {
+    try {
+      executor.execute(tokenForDrain);
+    } catch (RejectedExecutionException e) {
+      synchronized (lock) {
+        isDraining = false; // the executor has shut down, so the queue never will drain
+      }
+    }
+  }
+
+  private void drain() {
+    drainingThread = Thread.currentThread();
+    boolean isEmpty = false;
+    try {
+      for (int i = 0; i < RUNS_PER_TURN; i++) {
+        Runnable next;
+        synchronized (lock) {
+          next = queue.pollFirst();
+          if (next == null) {
+            isDraining = false;
+            isEmpty = true;
+            return;
+          }
+        }
+        next.run();
+      }
+    } finally {
+      drainingThread = null;
+      if (!isEmpty) submitTurn(); // out of turns, or a runnable threw, either way carry on later
+    }
+  }
+
+  private void forget(DelayedPost post) {
+    List<DelayedPost> posts = delayed.get(post.runnable);
+    if (posts != null && posts.remove(post) && posts.isEmpty()) delayed.remove(post.runnable);
+  }
+
+  private class DelayedPost implements Runnable {
+    final Runnable runnable;
+    ScheduledFuture<?> future; // guarded by lock
+
+    DelayedPost(Runnable runnable) {
+      this.runnable = runnable;
+    }
+
+    @Override
+    public void run() {
+      synchronized (lock) {
+        List<DelayedPost> posts = delayed.get(runnable);
+        if (posts == null || !posts.contains(this)) return; // removed while it was waiting
+        forget(this);
+      }
+      post(runnable);
+    }
+  }
+
+}
@@ -3,6 +3,7 @@ package com.eightbit85.simple_am2.internal;
 
 import android.content.Context;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -10,6 +11,8 @@ import androidx.annotation.RestrictTo;
 import androidx.media.AudioAttributesCompat;
 import androidx.media2.common.MediaItem;
 
+import com.eightbit85.simple_am2.PlayerSnapshot;
+import com.eightbit85.simple_am2.Tracer;
 import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.ExoPlaybackException;
 import com.google.android.exoplayer2.PlaybackParameters;
@@ -20,6 +23,8 @@ import com.google.android.exoplayer2.audio.AudioAttributes;
 import com.google.android.exoplayer2.audio.AudioListener;
 import com.google.android.exoplayer2.metadata.Metadata;
 import com.google.android.exoplayer2.metadata.MetadataOutput;
+import com.google.android.exoplayer2.source.LoadEventInfo;
+import com.google.android.exoplayer2.source.MediaLoadData;
 import com.google.common.base.Preconditions;
 
 import java.util.List;
@@ -30,20 +35,21 @@ import static com.eightbit85.simple_am2.internal.TaskCoordinator.MEDIA_ERROR_UNK
 public class ExoPlayerWrapper {
 
   interface WrapperListener {
-    void onPrepared(MediaItem mediaItem);
+    void onPrepared(int prepareId);
     void onTrackChanged(MediaItem item, int index);
     void onStartBufferPolling();
     void onStopBufferPolling();
     void onBufferingStarted(MediaItem mediaItem);
     void onBufferingUpdate(MediaItem mediaItem, int percent);
     void onBuffered(MediaItem mediaItem);
-    void onSeekCompleted();
+    void onSeekCompleted(int seekId);
     void onError(MediaItem mediaItem, int error);
   }
 
   public static final long UNKNOWN_TIME = Long.MIN_VALUE;
 
   private static final String logTag = "SMP2: ExoPlayerWrapper";
+  private static final long POSITION_SLACK_MS = 10; // drift from the snapshot's estimate worth republishing for
 
   private SimpleExoPlayer exoPlayer;
   private Context context;
@@ -53,36 +59,75 @@ public class ExoPlayerWrapper {
 
   private boolean isPrepared;
   private boolean isBuffering;
+  private MediaItem lastBufferedItem; // the item and percentage last reported to the listener
+  private int lastBufferedPercent;
+
+  // Correlation ids - each request to exo gets the next id, callbacks report the latest one handled
+  private int prepareRequests;
+  private int seekRequests;
+
+  private volatile PlayerSnapshot snapshot = PlayerSnapshot.EMPTY;
+  private AudioAttributes lastAudioAttributes;
+  private AudioAttributesCompat lastAudioAttributesCompat;
+  private Tracer tracer = Tracer.SYSTEM;
+  private SharedResources resources; // built on the first reset, unless shared
 
   ExoPlayerWrapper(Context context, Looper looper, WrapperListener listener) {
+    this(context, looper, listener, null);
+  }
+
+  /**
+   * @param resources Factories shared with other players, or null for the wrapper to build its own
+   */
+  ExoPlayerWrapper(Context context, Looper looper, WrapperListener listener, SharedResources resources) {
     this.context = context.getApplicationContext();
     this.looper = looper;
     this.listener = listener;
+    this.resources = resources;
   }
 
   // Class related
 
+  void setTracer(Tracer tracer) {
+    this.tracer = tracer;
+    if (mediaSourceManager != null) mediaSourceManager.setTracer(tracer);
+  }
+
   public void reset() {
+    tracer.beginSection("SMP2 ExoPlayerWrapper.reset");
+    try {
+      resetPlayer();
+    } finally {
+      tracer.endSection();
+    }
+  }
+
+  private void resetPlayer() {
     if (exoPlayer != null) {
       exoPlayer.setPlayWhenReady(false); // stop any playback
       exoPlayer.release();
       mediaSourceManager.clear();
     }
 
+    if (resources == null) resources = new SharedResources(context, "SimpleAudioPlayer", null);
+
     ExoEventListener exoListener = new ExoEventListener();
     /* TODO: investigate better options than defaults */
-    exoPlayer = new SimpleExoPlayer.Builder(context)
-      .setLooper(looper)
-      .build();
+    SimpleExoPlayer.Builder builder = new SimpleExoPlayer.Builder(context, resources.extractorsFactory)
+      .setLooper(looper);
+    if (resources.bandwidthMeter != null) builder.setBandwidthMeter(resources.bandwidthMeter);
+    exoPlayer = builder.build();
     exoPlayer.addListener(exoListener);
     exoPlayer.addAudioListener(exoListener);
     exoPlayer.addMetadataOutput(exoListener);
     exoPlayer.addAnalyticsListener(exoListener);
 
-    mediaSourceManager = new MediaSourceManager(context, "SimpleAudioPlayer");
+    mediaSourceManager = new MediaSourceManager(context, resources, tracer);
 
     isPrepared = false;
     isBuffering = false;
+    lastBufferedItem = null;
+    publishState();
   }
 
   public void close() {
@@ -91,6 +136,67 @@ public class ExoPlayerWrapper {
       exoPlayer = null;
       mediaSourceManager.clear();
     }
+    snapshot = PlayerSnapshot.EMPTY;
+  }
+
+  // State related
+
+  /**
+   * Captures the current state of the player and publishes it for readers on other threads. Must be
+   * called on the exo thread, after anything that may have changed the state.
+   */
+  void publishState() {
+    if (exoPlayer == null) return;
+    long duration = getDuration();
+    snapshot = new PlayerSnapshot(
+      getCurrentPosition(),
+      getBufferedPosition(),
+      duration,
+      getPlaybackParams().speed,
+      getVolume(),
+      getAudioAttributes(),
+      exoPlayer.isPlaying(),
+      duration >= 0 ? duration : getClipLength(),
+      SystemClock.elapsedRealtime());
+  }
+
+  /**
+   * As publishState, but keeps the published snapshot if nothing in it has changed, so an instruction
+   * that leaves the state alone, or whose listener has already published it, allocates nothing. While
+   * playing, the position counts as unchanged if the snapshot extrapolates to within a few ms of it.
+   */
+  void publishStateIfChanged() {
+    if (exoPlayer == null) return;
+    PlayerSnapshot last = snapshot;
+    long position = getCurrentPosition();
+    if (exoPlayer.isPlaying() != last.isPlaying
+      || Math.abs(position - last.getPosition(SystemClock.elapsedRealtime())) > POSITION_SLACK_MS
+      || getBufferedPosition() != last.bufferedPosition
+      || getDuration() != last.duration
+      || getPlaybackParams().speed != last.playbackSpeed
+      || getVolume() != last.volume
+      || getAudioAttributes() != last.audioAttributes) { // the same instance until they change
+      publishState();
+    }
+  }
+
+  /**
+   * Positions reported by exo are relative to the start of a clipped item, so the length of the clip
+   * bounds the position when the duration isn't known yet.
+   * @return Length of the current item's clip in ms, or -1 if it isn't clipped at the end
+   */
+  private long getClipLength() {
+    MediaItem item = getCurrentMediaItem();
+    if (item == null || item.getEndPosition() == MediaItem.POSITION_UNKNOWN) return -1;
+    return Math.max(0, item.getEndPosition() - item.getStartPosition());
+  }
+
+  /**
+   * Safe to call from any thread.
+   * @return The most recently published state of the player
+   */
+  public PlayerSnapshot getSnapshot() {
+    return snapshot;
   }
 
   // Admin related
@@ -106,23 +212,35 @@ public class ExoPlayerWrapper {
 
   public AudioAttributesCompat getAudioAttributes() {
     AudioAttributes aa = exoPlayer.getAudioAttributes();
-    return new AudioAttributesCompat.Builder()
-      .setContentType(aa.contentType)
-      .setFlags(aa.flags)
-      .setUsage(aa.usage)
-      .build();
+    if (aa != lastAudioAttributes) { // only convert when they've actually changed
+      lastAudioAttributes = aa;
+      lastAudioAttributesCompat = new AudioAttributesCompat.Builder()
+        .setContentType(aa.contentType)
+        .setFlags(aa.flags)
+        .setUsage(aa.usage)
+        .build();
+    }
+    return lastAudioAttributesCompat;
   }
 
   public void prepare() {
     Preconditions.checkState(!isPrepared);
     exoPlayer.prepare(mediaSourceManager.getConcatMediaSource());
+    prepareRequests++;
+  }
+
+  /**
+   * @return Correlation id of the most recent call to prepare, reported back by onPrepared
+   */
+  int getLastPrepareId() {
+    return prepareRequests;
   }
 
   public void notifySomethingReady() {
     MediaItem mediaItem = mediaSourceManager.getCurrentMediaItem();
     if (!isPrepared) {
       isPrepared = true;
-      listener.onPrepared(mediaItem);
+      listener.onPrepared(prepareRequests);
     }
 
     if (isBuffering) {
@@ -139,10 +257,23 @@ public class ExoPlayerWrapper {
     }
   }
 
-  void updateBuffering() {
-    if (mediaSourceManager.isCurrentRemote()) {
-      listener.onBufferingUpdate(getCurrentMediaItem(), exoPlayer.getBufferedPercentage());
+  /**
+   * Reports how much of the current item is buffered, if it has changed. Called when a load finishes
+   * and by the coordinator's fallback polling.
+   * @return Percentage of the current item that is buffered, local items are always 100
+   */
+  int updateBuffering() {
+    publishState();
+    if (!mediaSourceManager.isCurrentRemote()) return 100;
+
+    MediaItem item = getCurrentMediaItem();
+    int percent = exoPlayer.getBufferedPercentage();
+    if (item != lastBufferedItem || percent != lastBufferedPercent) {
+      lastBufferedItem = item;
+      lastBufferedPercent = percent;
+      listener.onBufferingUpdate(item, percent);
     }
+    return percent;
   }
 
   // Playlist Related
@@ -184,6 +315,7 @@ public class ExoPlayerWrapper {
   public void play() {
     if (exoPlayer.getPlaybackState() == Player.STATE_ENDED) {
       exoPlayer.seekTo(0, 0);
+      seekRequests++;
     }
     exoPlayer.setPlayWhenReady(true);
   }
@@ -196,6 +328,7 @@ public class ExoPlayerWrapper {
     int next = exoPlayer.getNextWindowIndex();
     if (next >= 0) {
       exoPlayer.seekToDefaultPosition(exoPlayer.getNextWindowIndex());
+      seekRequests++;
     }
   }
 
@@ -206,11 +339,13 @@ public class ExoPlayerWrapper {
     } else {
       exoPlayer.seekTo(0);
     }
+    seekRequests++;
   }
 
   public void skipToIndex(int index) {
     Preconditions.checkElementIndex(index, mediaSourceManager.getPlaylistSize());
     exoPlayer.seekToDefaultPosition(index);
+    seekRequests++;
   }
 
   public void setRepeatMode(int repeatMode) {
@@ -223,6 +358,16 @@ public class ExoPlayerWrapper {
 
   public void seekTo(long position) {
     exoPlayer.seekTo(position);
+    seekRequests++;
+  }
+
+  /**
+   * Every seek is counted, including those made by play and the skips, because exo only reports
+   * once all of the pending seeks have been processed.
+   * @return Correlation id of the most recent seek, reported back by onSeekCompleted
+   */
+  int getLastSeekId() {
+    return seekRequests;
   }
 
   public void setShuffleMode(boolean enabled) {
@@ -268,6 +413,8 @@ public class ExoPlayerWrapper {
 
     @Override
     public void onPlayerStateChanged(boolean playWhenReady, int state) {
+      publishState();
+
       if (state == Player.STATE_READY || state == Player.STATE_BUFFERING) {
         listener.onStartBufferPolling();
       } else {
@@ -295,14 +442,26 @@ public class ExoPlayerWrapper {
       }
     }
 
+    @Override
+    public void onIsPlayingChanged(boolean isPlaying) {
+      publishState(); // position extrapolation starts or stops here
+    }
+
     @Override
     public void onSeekProcessed() {
-      listener.onSeekCompleted();
+      publishState();
+      listener.onSeekCompleted(seekRequests); // everything requested so far has been processed
+    }
+
+    @Override
+    public void onPlaybackParametersChanged(@NonNull PlaybackParameters playbackParameters) {
+      publishState();
     }
 
     @Override
     public void onPositionDiscontinuity(int reason) {
       Log.d(logTag, "Position Discontinuity " + reason);
+      publishState();
 
       switch (reason) {
         case Player.DISCONTINUITY_REASON_PERIOD_TRANSITION:
@@ -310,6 +469,10 @@ public class ExoPlayerWrapper {
           boolean trackChanged = mediaSourceManager.onPlayerDiscontinuity(true, exoPlayer.getCurrentWindowIndex());
           if (trackChanged) {
             listener.onTrackChanged(getCurrentMediaItem(), mediaSourceManager.getCurrentIndex());
+            int state = exoPlayer.getPlaybackState();
+            if (state == Player.STATE_READY || state == Player.STATE_BUFFERING) {
+              listener.onStartBufferPolling(); // polling stops once an item is buffered, the new one may not be
+            }
           }
           break;
         default:
@@ -333,12 +496,12 @@ public class ExoPlayerWrapper {
 
     @Override
     public void onAudioAttributesChanged(AudioAttributes audioAttributes) {
-
+      publishState();
     }
 
     @Override
     public void onVolumeChanged(float volume) {
-
+      publishState();
     }
 
     // AnalyticsListener
@@ -348,6 +511,16 @@ public class ExoPlayerWrapper {
       Log.d(logTag, "AudioSessionId changed to " + audioSessionId);
     }
 
+    @Override
+    public void onLoadCompleted(@NonNull EventTime eventTime, @NonNull LoadEventInfo loadEventInfo, @NonNull MediaLoadData mediaLoadData) {
+      updateBuffering(); // a chunk has arrived, so this is when the buffered amount actually moves
+    }
+
+    @Override
+    public void onIsLoadingChanged(@NonNull EventTime eventTime, boolean isLoading) {
+      if (!isLoading) updateBuffering(); // loading has paused or finished
+    }
+
     // MetaDataOutput
 
     @Override
@@ -19,6 +19,18 @@ public abstract class ExoWrapperFactory {
     };
   }
 
+  /**
+   * Wrappers made by this factory share the resources, rather than each building their own.
+   */
+  public static ExoWrapperFactory getSharedFactory(SharedResources resources) {
+    return new ExoWrapperFactory() {
+      @Override
+      ExoPlayerWrapper getWrapper(Context context, Looper looper, ExoPlayerWrapper.WrapperListener listener) {
+        return new ExoPlayerWrapper(context, looper, listener, resources);
+      }
+    };
+  }
+
   abstract ExoPlayerWrapper getWrapper(Context context, Looper looper, ExoPlayerWrapper.WrapperListener listener);
 
 }
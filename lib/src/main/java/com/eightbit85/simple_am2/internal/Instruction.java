@@ -0,0 +1,46 @@
+package com.eightbit85.simple_am2.internal;
+
+import com.eightbit85.simple_am2.TaskMetrics;
+
+import java.util.Arrays;
+
+/**
+ * A single exoplayer call as built by TaskCoordinator, kept alongside the task that runs it so the
+ * coordinator can see what a task will do before running it, see InstructionOptimizer. The op has
+ * the arguments captured already, they're only kept here to be looked at.
+ */
+final class Instruction {
+
+  final @TaskMetrics.Op int kind;
+  final @TaskCoordinator.Awaits int awaits;
+  final TaskCoordinator.Op<Integer> op;
+  private final Object[] args;
+
+  Instruction(@TaskMetrics.Op int kind, @TaskCoordinator.Awaits int awaits, TaskCoordinator.Op<Integer> op, Object... args) {
+    this.kind = kind;
+    this.awaits = awaits;
+    this.op = op;
+    this.args = args;
+  }
+
+  /**
+   * @return True if the instruction is complete as soon as op returns, false if it waits on a callback
+   */
+  boolean isImmediate() {
+    return awaits == TaskCoordinator.AWAIT_NOTHING;
+  }
+
+  Object getArg(int i) {
+    return args[i];
+  }
+
+  int getArgCount() {
+    return args.length;
+  }
+
+  @Override
+  public String toString() {
+    return TaskMetrics.getOpName(kind) + Arrays.toString(args);
+  }
+
+}
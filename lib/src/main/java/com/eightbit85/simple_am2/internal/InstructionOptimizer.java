@@ -0,0 +1,68 @@
+package com.eightbit85.simple_am2.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.eightbit85.simple_am2.internal.TaskCoordinator.COALESCE_NONE;
+
+/**
+ * Rewrites a run of single instruction tasks, as found in a batch, before any of it is run:
+ * <ul>
+ *   <li>An instruction that the next one undoes is dropped, e.g. a seek followed by another seek.
+ *   Its task's maps and foreaches don't run, as with a task superseded in the queue. Only
+ *   instructions with the same coalescing key count, a play followed by a pause isn't the same as
+ *   neither, since play rewinds a player that has ended.</li>
+ *   <li>An immediate instruction moves ahead of a waiting one before it, so long as they share no
+ *   resources.</li>
+ *   <li>What's left is split into groups of immediate instructions ending in at most one waiting
+ *   instruction, and each group goes to the exo thread in one post. The maps and foreaches of each
+ *   task in a group are applied once the group is done, in the order the instructions ran.</li>
+ * </ul>
+ * The last instruction always ends up in the last group, so a batch still completes once its final
+ * command has. Moving an instruction does mean it can run before one that fails, where it wouldn't
+ * have been run at all before.
+ */
+final class InstructionOptimizer {
+
+  private InstructionOptimizer() {}
+
+  /**
+   * @param tasks Tasks that each have exactly one instruction, see MediaTask.getInstruction
+   * @return The tasks whose instructions are still to run, in order, grouped by post
+   */
+  static <T extends MediaTask<?, ?>> List<List<T>> optimize(List<T> tasks) {
+    ArrayList<T> kept = new ArrayList<>(tasks.size());
+    for (T task : tasks) {
+      while (!kept.isEmpty() && isUndoneBy(kept.get(kept.size() - 1), task)) kept.remove(kept.size() - 1);
+      kept.add(task);
+    }
+
+    for (int i = 1; i < kept.size(); i++) {
+      for (int j = i; j > 0 && canMoveAhead(kept.get(j), kept.get(j - 1)); j--) {
+        kept.set(j, kept.set(j - 1, kept.get(j)));
+      }
+    }
+
+    List<List<T>> groups = new ArrayList<>();
+    List<T> group = new ArrayList<>();
+    for (T task : kept) {
+      group.add(task);
+      if (!task.getInstruction().isImmediate()) {
+        groups.add(group);
+        group = new ArrayList<>();
+      }
+    }
+    if (!group.isEmpty()) groups.add(group);
+    return groups;
+  }
+
+  private static boolean isUndoneBy(MediaTask<?, ?> earlier, MediaTask<?, ?> later) {
+    return earlier.getCoalesceKey() != COALESCE_NONE && earlier.getCoalesceKey() == later.getCoalesceKey();
+  }
+
+  private static boolean canMoveAhead(MediaTask<?, ?> task, MediaTask<?, ?> waiting) {
+    return task.getInstruction().isImmediate() && !waiting.getInstruction().isImmediate()
+      && (task.getResources() & waiting.getResources()) == 0;
+  }
+
+}
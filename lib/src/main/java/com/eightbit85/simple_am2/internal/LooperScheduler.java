@@ -0,0 +1,104 @@
+package com.eightbit85.simple_am2.internal;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RestrictTo;
+
+import static androidx.annotation.RestrictTo.Scope.LIBRARY_GROUP_PREFIX;
+
+/**
+ * Scheduler backed by a Handler. This is what the player runs on, exoplayer needs a looper.
+ */
+@RestrictTo(LIBRARY_GROUP_PREFIX)
+public final class LooperScheduler implements Scheduler {
+
+  private final Handler handler;
+  private final HandlerThread ownThread; // null if the looper belongs to someone else
+  private final Object lockForQuit; // held while posting, so nothing can be posted once quit has cleared the handler
+  private boolean isQuit;
+
+  /**
+   * Posts to an existing looper. Quitting the scheduler drops what it has posted but leaves the
+   * looper running, so each user of a shared looper needs a scheduler of its own.
+   */
+  public LooperScheduler(@NonNull Looper looper) {
+    this(looper, null);
+  }
+
+  private LooperScheduler(Looper looper, HandlerThread ownThread) {
+    this.handler = new Handler(looper);
+    this.ownThread = ownThread;
+    this.lockForQuit = new Object();
+  }
+
+  /**
+   * Starts a new HandlerThread to post to, which is quit along with the scheduler.
+   */
+  public static LooperScheduler start(@NonNull String name) {
+    HandlerThread thread = new HandlerThread(name);
+    thread.start();
+    return new LooperScheduler(thread.getLooper(), thread);
+  }
+
+  public Looper getLooper() {
+    return handler.getLooper();
+  }
+
+  @Override
+  public boolean post(Runnable runnable) {
+    synchronized (lockForQuit) {
+      return !isQuit && handler.post(runnable);
+    }
+  }
+
+  @Override
+  public boolean postDelayed(Runnable runnable, long delayMs) {
+    synchronized (lockForQuit) {
+      return !isQuit && handler.postDelayed(runnable, delayMs);
+    }
+  }
+
+  @Override
+  public boolean postAtFront(Runnable runnable) {
+    synchronized (lockForQuit) {
+      return !isQuit && handler.postAtFrontOfQueue(runnable);
+    }
+  }
+
+  @Override
+  public void remove(Runnable runnable) {
+    handler.removeCallbacks(runnable);
+  }
+
+  @Override
+  public boolean isCurrentThread() {
+    return handler.getLooper().isCurrentThread();
+  }
+
+  @Override
+  public long uptimeMillis() {
+    return SystemClock.uptimeMillis(); // what Handler uses for delays
+  }
+
+  @Override
+  public String getName() {
+    return handler.getLooper().getThread().getName();
+  }
+
+  @Override
+  public void quit() {
+    synchronized (lockForQuit) {
+      isQuit = true;
+      if (ownThread != null) {
+        ownThread.quit();
+      } else {
+        handler.removeCallbacksAndMessages(null); // only this handler's, anyone else's are left alone
+      }
+    }
+  }
+
+}
@@ -0,0 +1,163 @@
+package com.eightbit85.simple_am2.internal;
+
+import android.util.Log;
+
+import com.eightbit85.simple_am2.TaskMetrics;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Measures how late the coordinator's loopers are in getting to their messages. A tick on a watcher
+ * thread of its own keeps a probe posted to each looper, so a stuck looper is reported while the
+ * stall is still going on, rather than once it has cleared, whichever looper it is. Ticks only carry
+ * on while the coordinator has tasks waiting or in flight, or a probe hasn't come back, and start
+ * again with the next task, so an idle player isn't woken.
+ */
+class LooperWatchdog {
+
+  private static final String logTag = "SMP2: LooperWatchdog";
+
+  private final Scheduler watchScheduler;
+  private final long thresholdMs;
+  private final long intervalMs;
+  private final BooleanSupplier isBusy;
+  private final Listener listener;
+  private final Probe taskProbe;
+  private final Probe exoProbe; // null when both run on the same looper
+  private final Runnable tokenForTick;
+  private final AtomicBoolean isTicking;
+
+  // Kind of the instruction most recently started on each looper, see TaskMetrics.Op
+  volatile int lastTaskOp = -1;
+  volatile int lastExoOp = -1;
+
+  interface Listener {
+    void onLooperStalled(String looperName, long lagMs, String instruction);
+  }
+
+  /**
+   * The watcher thread shared by every watchdog, only started once one is made.
+   */
+  private static final class SharedThread {
+    static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "SimpleAudioPlayerWatchdog");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  LooperWatchdog(Scheduler taskScheduler, Scheduler exoScheduler, long thresholdMs, BooleanSupplier isBusy, Listener listener) {
+    this(new ExecutorScheduler("SimpleAudioPlayerWatchdog", SharedThread.EXECUTOR), taskScheduler, exoScheduler,
+      thresholdMs, isBusy, listener);
+  }
+
+  /**
+   * @param watchScheduler Runs the ticks, never one of the loopers being watched
+   * @param isBusy Whether the coordinator has any tasks waiting or in flight, asked on the watcher
+   */
+  LooperWatchdog(Scheduler watchScheduler, Scheduler taskScheduler, Scheduler exoScheduler, long thresholdMs,
+                 BooleanSupplier isBusy, Listener listener) {
+    this.watchScheduler = watchScheduler;
+    this.thresholdMs = thresholdMs;
+    this.intervalMs = Math.max(1, thresholdMs / 2); // so a stall is caught within 1.5x the threshold
+    this.isBusy = isBusy;
+    this.listener = listener;
+    this.taskProbe = new Probe(taskScheduler, false);
+    this.exoProbe = (exoScheduler != taskScheduler) ? new Probe(exoScheduler, true) : null;
+    this.tokenForTick = this::tick;
+    this.isTicking = new AtomicBoolean();
+  }
+
+  void start() {
+    wake();
+  }
+
+  /**
+   * Starts ticking again if it had stopped, called as each task is submitted. Safe to call from any
+   * thread, and cheap when already ticking.
+   */
+  void wake() {
+    if (!isTicking.get() && isTicking.compareAndSet(false, true)) {
+      watchScheduler.postDelayed(tokenForTick, intervalMs);
+    }
+  }
+
+  void stop() {
+    watchScheduler.quit();
+    taskProbe.scheduler.remove(taskProbe);
+    if (exoProbe != null) exoProbe.scheduler.remove(exoProbe);
+  }
+
+  private void tick() {
+    boolean isBusyNow = isBusy.getAsBoolean();
+    boolean isProbing = taskProbe.check(isBusyNow);
+    if (exoProbe != null) isProbing |= exoProbe.check(isBusyNow);
+    if (isBusyNow || isProbing) {
+      watchScheduler.postDelayed(tokenForTick, intervalMs);
+      return;
+    }
+
+    isTicking.set(false);
+    if (isBusy.getAsBoolean()) wake(); // a task arrived as it was stopping
+  }
+
+  private void report(String looperName, long lagMs, int op) {
+    String instruction = TaskMetrics.getOpName(op);
+    Log.w(logTag, looperName + " stalled for " + lagMs + "ms, last instruction: " + instruction);
+    listener.onLooperStalled(looperName, lagMs, instruction);
+  }
+
+  /**
+   * Posted to a looper by a tick, and timed on that looper's own clock. Until it runs, each tick
+   * checks how long it has been waiting.
+   */
+  private class Probe implements Runnable {
+    final Scheduler scheduler;
+    final String name;
+    final boolean isExo;
+    final AtomicBoolean isReported = new AtomicBoolean(); // once per stall
+    volatile boolean isPosted;
+    volatile long postedAt;
+
+    Probe(Scheduler scheduler, boolean isExo) {
+      this.scheduler = scheduler;
+      this.name = scheduler.getName();
+      this.isExo = isExo;
+    }
+
+    /**
+     * Runs on the watcher. Reports the looper if the probe has waited too long, or posts a new probe
+     * if there isn't one and there is work about.
+     * @return Whether a probe is still waiting
+     */
+    boolean check(boolean isBusyNow) {
+      if (isPosted) {
+        long lag = scheduler.uptimeMillis() - postedAt;
+        if (lag > thresholdMs && isReported.compareAndSet(false, true)) report(name, lag, lastOp());
+        return true;
+      }
+      if (!isBusyNow) return false;
+
+      postedAt = scheduler.uptimeMillis();
+      isPosted = true;
+      if (!scheduler.post(this)) isPosted = false; // quit, the coordinator is closing
+      return isPosted;
+    }
+
+    @Override
+    public void run() {
+      long lag = scheduler.uptimeMillis() - postedAt;
+      if (lag > thresholdMs && isReported.compareAndSet(false, true)) report(name, lag, lastOp());
+      isPosted = false;
+      isReported.set(false); // after isPosted, so a tick can't report this probe a second time
+    }
+
+    private int lastOp() {
+      return isExo ? lastExoOp : lastTaskOp;
+    }
+  }
+
+}
@@ -9,17 +9,15 @@ import androidx.annotation.RestrictTo;
 import androidx.media2.common.MediaItem;
 import androidx.media2.common.UriMediaItem;
 
+import com.eightbit85.simple_am2.Tracer;
 import com.google.android.exoplayer2.C;
-import com.google.android.exoplayer2.extractor.DefaultExtractorsFactory;
 import com.google.android.exoplayer2.extractor.ExtractorsFactory;
-import com.google.android.exoplayer2.extractor.ts.AdtsExtractor;
 import com.google.android.exoplayer2.source.ClippingMediaSource;
 import com.google.android.exoplayer2.source.ConcatenatingMediaSource;
 import com.google.android.exoplayer2.source.MediaSource;
 import com.google.android.exoplayer2.source.ProgressiveMediaSource;
 import com.google.android.exoplayer2.source.hls.HlsMediaSource;
 import com.google.android.exoplayer2.upstream.DataSource;
-import com.google.android.exoplayer2.upstream.DefaultDataSourceFactory;
 import com.google.android.exoplayer2.upstream.RawResourceDataSource;
 import com.google.android.exoplayer2.util.Util;
 import com.google.common.base.Preconditions;
@@ -36,23 +34,35 @@ public class MediaSourceManager {
 
   private final String logTag = "SMP2: MediaSourceManager";
   private ConcatenatingMediaSource concatMediaSource;
-  private DataSource.Factory dataSourceFactory;
+  private final DataSource.Factory dataSourceFactory;
+  private final ExtractorsFactory extractorsFactory;
   private Context context;
   private ArrayList<MediaItemWithInfo> mediaItems;
   private int currentIndex;
-
-  private final ExtractorsFactory extractorsFactory = new DefaultExtractorsFactory()
-    .setAdtsExtractorFlags(AdtsExtractor.FLAG_ENABLE_CONSTANT_BITRATE_SEEKING);
+  private Tracer tracer;
 
   public MediaSourceManager(Context context, String userAgentName) {
+    this(context, userAgentName, Tracer.SYSTEM);
+  }
+
+  public MediaSourceManager(Context context, String userAgentName, Tracer tracer) {
+    this(context, new SharedResources(context, userAgentName, null), tracer);
+  }
+
+  public MediaSourceManager(Context context, SharedResources resources, Tracer tracer) {
     this.context = context;
-    String userAgent = Util.getUserAgent(context, userAgentName);
-    dataSourceFactory = new DefaultDataSourceFactory(context, userAgent);
+    this.tracer = tracer;
+    dataSourceFactory = resources.dataSourceFactory;
+    extractorsFactory = resources.extractorsFactory;
     concatMediaSource = new ConcatenatingMediaSource();
     mediaItems = new ArrayList<>();
     currentIndex = -1;
   }
 
+  void setTracer(Tracer tracer) {
+    this.tracer = tracer;
+  }
+
   public ConcatenatingMediaSource getConcatMediaSource() {
     return concatMediaSource;
   }
@@ -72,12 +82,17 @@ public class MediaSourceManager {
   }
 
   public void setMediaItems(List<MediaItem> items) {
-    clear();
-    List<MediaSource> sources = items.stream().map(this::createMediaSource).collect(Collectors.toList());
-    List<MediaItemWithInfo> infos = items.stream().map(this::createInfo).collect(Collectors.toList());
-    concatMediaSource.addMediaSources(sources);
-    mediaItems.addAll(infos);
-    currentIndex = 0;
+    tracer.beginSection("SMP2 MediaSourceManager.setMediaItems");
+    try {
+      clear();
+      List<MediaSource> sources = items.stream().map(this::createMediaSource).collect(Collectors.toList());
+      List<MediaItemWithInfo> infos = items.stream().map(this::createInfo).collect(Collectors.toList());
+      concatMediaSource.addMediaSources(sources);
+      mediaItems.addAll(infos);
+      currentIndex = 0;
+    } finally {
+      tracer.endSection();
+    }
   }
 
   public MediaItem getCurrentMediaItem() {
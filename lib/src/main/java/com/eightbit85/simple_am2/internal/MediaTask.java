@@ -1,37 +1,264 @@
 package com.eightbit85.simple_am2.internal;
 
+import com.eightbit85.simple_am2.Monads.Either;
 import com.eightbit85.simple_am2.Monads.Eval;
+import com.eightbit85.simple_am2.Monads.Good;
+import com.eightbit85.simple_am2.Monads.Now;
+import com.eightbit85.simple_am2.Monads.Parallel;
 
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
+import static com.eightbit85.simple_am2.internal.TaskCoordinator.COALESCE_NONE;
+import static com.eightbit85.simple_am2.internal.TaskCoordinator.LANE_NORMAL;
+import static com.eightbit85.simple_am2.internal.TaskCoordinator.RESOURCE_ALL;
+import static com.eightbit85.simple_am2.internal.TaskCoordinator.RESOURCE_NONE;
+
 public class MediaTask<E, A> {
 
   public static <E, T> MediaTask<E, T> pure(T t) {
-    return new MediaTask<>(() -> Eval.pure(t));
+    return new MediaTask<>(() -> Eval.pure(t), COALESCE_NONE, RESOURCE_NONE, LANE_NORMAL); // touches nothing
   }
 
+  // A task is one of: an instruction, r; a flatMap, source then next; or a pipeline, source's value
+  // fed through a run of maps and foreaches
   private final Supplier<Eval<E, A>> r;
+  private final MediaTask<E, ?> source;
+  private final Function<?, MediaTask<E, A>> next;
+  private final Pipeline pipeline;
+  private final Instruction instruction; // set when the task is a single instruction, with any pipeline after it
+  private final @TaskCoordinator.CoalesceKey int coalesceKey;
+  private final @TaskCoordinator.Resource int resources;
+  private final @TaskCoordinator.Lane int lane;
 
   public MediaTask(Supplier<Eval<E, A>> op) {
+    this(op, null);
+  }
+
+  MediaTask(Supplier<Eval<E, A>> op, Instruction instruction) {
+    this(op, null, null, null, instruction, COALESCE_NONE, RESOURCE_ALL, LANE_NORMAL);
+  }
+
+  private MediaTask(Supplier<Eval<E, A>> op, @TaskCoordinator.CoalesceKey int coalesceKey,
+                    @TaskCoordinator.Resource int resources, @TaskCoordinator.Lane int lane) {
+    this(op, null, null, null, null, coalesceKey, resources, lane);
+  }
+
+  private MediaTask(Supplier<Eval<E, A>> op, MediaTask<E, ?> source, Function<?, MediaTask<E, A>> next,
+                    Pipeline pipeline, Instruction instruction, @TaskCoordinator.CoalesceKey int coalesceKey,
+                    @TaskCoordinator.Resource int resources, @TaskCoordinator.Lane int lane) {
     this.r = op;
+    this.source = source;
+    this.next = next;
+    this.pipeline = pipeline;
+    this.instruction = instruction;
+    this.coalesceKey = coalesceKey;
+    this.resources = resources;
+    this.lane = lane;
   }
 
+  /**
+   * Builds the task's Eval. A chain of flatMaps is walked with a stack rather than by recursion, so
+   * long chains can't overflow the stack. Instructions that complete immediately are run as they
+   * are reached, and everything after the first one that completes later is left on its Eval.
+   */
+  @SuppressWarnings("unchecked")
   Eval<E, A> run() {
-    return this.r.get();
+    if (r != null) return r.get();
+
+    MediaTask<E, Object> current = (MediaTask<E, Object>) (MediaTask<E, ?>) this;
+    ArrayDeque<MediaTask<E, Object>> pending = new ArrayDeque<>(); // waiting on their source's value
+    while (true) {
+      while (current.r == null) {
+        pending.push(current);
+        current = (MediaTask<E, Object>) current.source;
+      }
+      Eval<E, Object> eval = current.r.get();
+
+      MediaTask<E, Object> returned = null;
+      while (returned == null && !pending.isEmpty() && eval.isNow()) {
+        Either<E, Object> ea = eval.run();
+        if (!ea.isGood()) return (Eval<E, A>) (Eval<E, ?>) eval; // a Now holding a Bad, so it can be retyped
+        MediaTask<E, Object> waiting = pending.pop();
+        if (waiting.next != null) {
+          returned = ((Function<Object, MediaTask<E, Object>>) waiting.next).apply(ea.getValue());
+        } else {
+          eval = new Now<>(new Good<>(waiting.pipeline.apply(ea.getValue())));
+        }
+      }
+      if (returned != null) {
+        current = returned; // carry on with the task the flatMap returned
+        continue;
+      }
+
+      while (!pending.isEmpty()) { // the rest of the chain waits on the Eval
+        MediaTask<E, Object> waiting = pending.pop();
+        if (waiting.next != null) {
+          Function<Object, MediaTask<E, Object>> fa = (Function<Object, MediaTask<E, Object>>) waiting.next;
+          eval = eval.flatMap(a -> fa.apply(a).run());
+        } else {
+          eval = eval.map(waiting.pipeline);
+        }
+      }
+      return (Eval<E, A>) (Eval<E, ?>) eval;
+    }
   }
 
+  /**
+   * The exoplayer call the task makes, for tasks that are one call as built by the TaskCoordinator,
+   * whether or not maps and foreaches have been added after it, see applyPipeline. Anything that
+   * has been through flatMap gives null, since what comes next can't be known until it has run.
+   */
+  Instruction getInstruction() {
+    return instruction;
+  }
+
+  /**
+   * Applies the maps and foreaches that follow the task's instruction, for when the instruction has
+   * been run by itself, see InstructionOptimizer.
+   * @param value What the instruction completed with
+   * @return What the task would have completed with
+   */
+  @SuppressWarnings("unchecked")
+  A applyPipeline(Object value) {
+    return (A) (pipeline == null ? value : pipeline.apply(value));
+  }
+
+  /**
+   * A pending task with the same key as a newly submitted one is replaced by it, see
+   * TaskCoordinator.submit. Keys survive map and foreach, but not flatMap, since a sequence of
+   * instructions can't be assumed to be superseded by a single one.
+   */
+  @TaskCoordinator.CoalesceKey int getCoalesceKey() {
+    return coalesceKey;
+  }
+
+  MediaTask<E, A> coalescing(@TaskCoordinator.CoalesceKey int key) {
+    return withAttributes(key, resources, lane);
+  }
+
+  /**
+   * The parts of the player the instructions read or change. Tasks that share none of them can be
+   * in flight at the same time, see TaskCoordinator.drainTasks. Anything unknown is assumed to touch
+   * everything, and that includes the result of flatMap, since the later instructions aren't known
+   * until the earlier ones have run.
+   */
+  @TaskCoordinator.Resource int getResources() {
+    return resources;
+  }
+
+  MediaTask<E, A> touching(@TaskCoordinator.Resource int resources) {
+    return withAttributes(coalesceKey, resources, lane);
+  }
+
+  /**
+   * Interactive tasks are started, and their instructions run, ahead of normal ones whenever they
+   * don't depend on them. Like the coalescing key, the lane doesn't survive flatMap.
+   */
+  @TaskCoordinator.Lane int getLane() {
+    return lane;
+  }
+
+  MediaTask<E, A> inLane(@TaskCoordinator.Lane int lane) {
+    return withAttributes(coalesceKey, resources, lane);
+  }
+
+  private MediaTask<E, A> withAttributes(@TaskCoordinator.CoalesceKey int coalesceKey,
+                                         @TaskCoordinator.Resource int resources, @TaskCoordinator.Lane int lane) {
+    return new MediaTask<>(r, source, next, pipeline, instruction, coalesceKey, resources, lane);
+  }
+
+  /**
+   * Maps and foreaches are fused: a run of them becomes one pipeline, applied once to the value the
+   * instructions complete with.
+   */
+  @SuppressWarnings("unchecked")
   public <B> MediaTask<E, B> map(Function<A, B> f) {
-    return new MediaTask<>(() -> this.run().map(f));
+    Function<Object, Object> stage = (Function<Object, Object>) f;
+    if (pipeline != null) {
+      return new MediaTask<>(null, source, null, pipeline.then(stage), instruction, coalesceKey, resources, lane);
+    }
+    return new MediaTask<>(null, this, null, new Pipeline(stage), instruction, coalesceKey, resources, lane);
   }
 
   public <B> MediaTask<E, B> flatMap(Function<A, MediaTask<E, B>> fa) {
-    return new MediaTask<>(() -> this.run().flatMap(a -> fa.apply(a).run()));
+    return new MediaTask<>(null, this, fa, null, null, COALESCE_NONE, RESOURCE_ALL, LANE_NORMAL);
+  }
+
+  /**
+   * Runs both tasks at once, each waiting only on its own instructions, and combines their values
+   * once both are done, e.g. a seek and a prepare that can be waited on together. Stops at the
+   * first failure of either, though anything the other has already sent to the exoplayer still
+   * happens. Unlike flatMap, every task is known up front, so their resources are kept.
+   */
+  @SuppressWarnings("unchecked")
+  public <B, C> MediaTask<E, C> zip(MediaTask<E, B> other, BiFunction<A, B, C> f) {
+    return new MediaTask<>(() -> {
+      Eval<E, ?>[] branches = newBranches(2);
+      branches[0] = this.run();
+      branches[1] = other.run();
+      return Parallel.of(branches, values -> f.apply((A) values[0], (B) values[1]));
+    }, null, null, null, null, COALESCE_NONE, resources | other.resources, LANE_NORMAL);
+  }
+
+  /**
+   * Runs all the tasks at once, as with zip, giving their values in the same order.
+   */
+  @SuppressWarnings("unchecked")
+  public static <E, A> MediaTask<E, List<A>> all(List<MediaTask<E, A>> tasks) {
+    int resources = RESOURCE_NONE;
+    for (MediaTask<E, A> task : tasks) resources |= task.resources;
+
+    return new MediaTask<>(() -> {
+      Eval<E, ?>[] branches = newBranches(tasks.size());
+      for (int i = 0; i < branches.length; i++) branches[i] = tasks.get(i).run();
+      return Parallel.of(branches, values -> Arrays.asList((A[]) values));
+    }, null, null, null, null, COALESCE_NONE, resources, LANE_NORMAL);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <E> Eval<E, ?>[] newBranches(int n) {
+    return (Eval<E, ?>[]) new Eval<?, ?>[n];
   }
 
   public MediaTask<E, A> foreach(Consumer<A> f) {
-    return new MediaTask<>(() -> this.run().foreach(f));
+    return map(a -> {
+      f.accept(a);
+      return a;
+    });
+  }
+
+  /**
+   * Immutable run of functions, applied in order.
+   */
+  private static final class Pipeline implements Function<Object, Object> {
+    private final Function<Object, Object>[] stages;
+
+    @SuppressWarnings("unchecked")
+    Pipeline(Function<Object, Object> stage) {
+      this.stages = (Function<Object, Object>[]) new Function<?, ?>[] {stage};
+    }
+
+    private Pipeline(Function<Object, Object>[] stages) {
+      this.stages = stages;
+    }
+
+    Pipeline then(Function<Object, Object> stage) {
+      Function<Object, Object>[] more = Arrays.copyOf(stages, stages.length + 1);
+      more[stages.length] = stage;
+      return new Pipeline(more);
+    }
+
+    @Override
+    public Object apply(Object a) {
+      for (Function<Object, Object> stage : stages) a = stage.apply(a);
+      return a;
+    }
   }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,52 @@
+package com.eightbit85.simple_am2.internal;
+
+import androidx.annotation.RestrictTo;
+
+import static androidx.annotation.RestrictTo.Scope.LIBRARY_GROUP_PREFIX;
+
+/**
+ * A serial queue of runnables, the part of a Handler that TaskCoordinator actually uses. Runnables
+ * never run concurrently with each other, and run in the order they were posted, apart from those
+ * posted at the front. See LooperScheduler and ExecutorScheduler.
+ */
+@RestrictTo(LIBRARY_GROUP_PREFIX)
+public interface Scheduler {
+
+  /**
+   * @return False if the scheduler has quit, in which case the runnable will never run
+   */
+  boolean post(Runnable runnable);
+
+  boolean postDelayed(Runnable runnable, long delayMs);
+
+  /**
+   * Posts the runnable ahead of everything else that is waiting to run.
+   */
+  boolean postAtFront(Runnable runnable);
+
+  /**
+   * Removes every pending post of the runnable, delayed or not. Compared by identity.
+   */
+  void remove(Runnable runnable);
+
+  /**
+   * @return True if called from inside one of this scheduler's runnables
+   */
+  boolean isCurrentThread();
+
+  /**
+   * @return Current time in ms on the clock that postDelayed waits on
+   */
+  long uptimeMillis();
+
+  /**
+   * @return Name used when reporting on the scheduler, such as in stall warnings
+   */
+  String getName();
+
+  /**
+   * Stops the scheduler, anything still pending is dropped and later posts return false.
+   */
+  void quit();
+
+}
@@ -0,0 +1,40 @@
+package com.eightbit85.simple_am2.internal;
+
+import android.content.Context;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.RestrictTo;
+
+import com.google.android.exoplayer2.extractor.DefaultExtractorsFactory;
+import com.google.android.exoplayer2.extractor.ExtractorsFactory;
+import com.google.android.exoplayer2.extractor.ts.AdtsExtractor;
+import com.google.android.exoplayer2.upstream.BandwidthMeter;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DefaultDataSourceFactory;
+import com.google.android.exoplayer2.util.Util;
+
+import static androidx.annotation.RestrictTo.Scope.LIBRARY_GROUP_PREFIX;
+
+/**
+ * The factories behind an exoplayer and its media sources. Each player builds its own by default,
+ * a PlayerPool shares one between all of its players. All of it is safe to share between threads.
+ */
+@RestrictTo(LIBRARY_GROUP_PREFIX)
+public final class SharedResources {
+
+  final DataSource.Factory dataSourceFactory;
+  final ExtractorsFactory extractorsFactory;
+  final @Nullable BandwidthMeter bandwidthMeter; // null for exo's default
+
+  /**
+   * @param bandwidthMeter Meter to share between the players, or null to use exo's default
+   */
+  public SharedResources(Context context, String userAgentName, @Nullable BandwidthMeter bandwidthMeter) {
+    String userAgent = Util.getUserAgent(context, userAgentName);
+    this.dataSourceFactory = new DefaultDataSourceFactory(context, userAgent);
+    this.extractorsFactory = new DefaultExtractorsFactory()
+      .setAdtsExtractorFlags(AdtsExtractor.FLAG_ENABLE_CONSTANT_BITRATE_SEEKING);
+    this.bandwidthMeter = bandwidthMeter;
+  }
+
+}
@@ -2,17 +2,15 @@ package com.eightbit85.simple_am2.internal;
 
 
 import android.content.Context;
-import android.os.Handler;
-import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
-import androidx.annotation.GuardedBy;
 import androidx.annotation.IntDef;
 import androidx.annotation.IntRange;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.RestrictTo;
-import androidx.core.util.ObjectsCompat;
 import androidx.media.AudioAttributesCompat;
 import androidx.media2.common.MediaItem;
 import androidx.media2.common.SessionPlayer;
@@ -24,19 +22,34 @@ import com.eightbit85.simple_am2.Monads.Eval;
 import com.eightbit85.simple_am2.Monads.Good;
 import com.eightbit85.simple_am2.Monads.Later;
 import com.eightbit85.simple_am2.Monads.Now;
+import com.eightbit85.simple_am2.PlayerSnapshot;
+import com.eightbit85.simple_am2.TaskMetrics;
+import com.eightbit85.simple_am2.Tracer;
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 
 import java.io.IOException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.function.Function;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
 
 import static androidx.annotation.RestrictTo.Scope.LIBRARY_GROUP_PREFIX;
 
@@ -55,41 +68,63 @@ public class TaskCoordinator implements ExoPlayerWrapper.WrapperListener, AutoCl
     void setBufferingState(final MediaItem item, @SessionPlayer.BuffState final int state);
     void onTrackChanged(MediaItem item, int index);
     void onError(MediaItem item, int error);
-    Integer convertStatus(@CallStatus int status);
+    int convertStatus(@CallStatus int status);
   }
 
   private static final String logTag = "SMP2: TaskCoordinator";
 
   // Thread related
-  @GuardedBy("lockForTaskHandler")
-  private HandlerThread taskHandlerThread;
-  @GuardedBy("lockForTaskHandler")
-  private final Handler taskHandler;
-  @GuardedBy("lockForExoHandler")
-  private HandlerThread exoHandlerThread;
-  @GuardedBy("lockForExoHandler")
-  private final Handler exoHandler;
-
-  // Task related
-  @GuardedBy("lockForTaskQ")
-  private final ArrayDeque<MediaPlayerTask> taskQueue;
-  private MediaPlayerTask currentTask;
+  private final Scheduler taskScheduler;
+  private final Scheduler exoScheduler; // may be the same as taskScheduler
+  private final AtomicReference<SettableFuture<Void>> closing; // set once close has begun
+
+  // Task related - any thread can add to the inbox or retire a task, everything else is moved along by the task thread
+  private final ConcurrentLinkedQueue<MediaPlayerTask> inbox;
+  private final ConcurrentLinkedQueue<MediaPlayerTask> retired;
+  private final AtomicBoolean isDrainScheduled;
+  private final Runnable tokenForDrain;
+  private final ConcurrentLinkedDeque<MediaPlayerTask> taskQueue; // moved along by the task thread, others only drop from it
+  private final ArrayList<MediaPlayerTask> inFlight; // only touched on the task thread
+  private volatile int inFlightCount; // size of inFlight, kept for the watchdog to read from its own thread
+  private final ThreadLocal<MediaPlayerTask> steppingTask; // the task whose instructions are being built
   private final PollBufferRunnable tokenForBufferPolling;
-  private boolean isPolling;
+  private boolean isPolling; // only touched on the exo thread
+  private long pollInterval; // only touched on the exo thread
+  private int lastPolledPercent; // only touched on the exo thread
+
+  // Interactive instructions jump the exo queue together, in the order they were sent
+  private final ConcurrentLinkedQueue<Runnable> interactiveInstructions;
+  private final AtomicBoolean isInteractivePosted;
+  private final Runnable tokenForInteractive;
+
+  // Instructions waiting on an exo callback, oldest first - only touched on the exo thread
+  private final ArrayDeque<CompletionSlot> awaitingPrepared;
+  private final ArrayDeque<CompletionSlot> awaitingSeek;
+
+  // Deadlines - slots are handed over by the exo thread, one timer on the task thread checks them
+  private final ConcurrentLinkedQueue<CompletionSlot> newlyWatched;
+  private final ArrayList<CompletionSlot> watched; // only touched on the task thread
+  private final Runnable tokenForWatchdog;
+  private final AtomicInteger stallCount;
+  private volatile long prepareTimeoutMs = PREPARE_TIMEOUT_MS;
+  private volatile long seekTimeoutMs = SEEK_TIMEOUT_MS;
 
   // ExoPlayer related
   private ExoPlayerWrapper exoplayer;
   private BufferListener bufferListener;
 
-  // Locks
-  private final Object lockForTaskQ;
-  private final Object lockForTaskHandler;
-  private final Object lockForExoHandler;
-  private final Object lockForState;
-  private final Object lockForOverride;
+  // Metrics - null unless a listener has been set
+  private volatile TaskMetrics metrics;
+  private volatile TaskMetrics.Listener metricsListener;
+  private volatile LooperWatchdog watchdog; // null unless a stall threshold has been set
+  private volatile Tracer tracer = Tracer.SYSTEM;
 
-  // Other
-  private int overrideStatus;
+  // Backpressure - the queue is unbounded unless a capacity has been set
+  private volatile int queueCapacity = Integer.MAX_VALUE;
+  private volatile @OverflowPolicy int overflowPolicy = OVERFLOW_REJECT;
+  private final AtomicInteger waitingCount = new AtomicInteger(); // tasks in the inbox or queue that haven't started
+  private final AtomicLong rejectedCount = new AtomicLong(); // new tasks turned away
+  private final AtomicLong droppedCount = new AtomicLong(); // queued tasks pushed out by newer ones
 
   // Error Codes
   public static final int MEDIA_ERROR_UNKNOWN = 1;
@@ -102,6 +137,8 @@ public class TaskCoordinator implements ExoPlayerWrapper.WrapperListener, AutoCl
   public static final int CALL_STATUS_PERMISSION_DENIED = 3;
   public static final int CALL_STATUS_ERROR_IO = 4;
   public static final int CALL_STATUS_SKIPPED = 5;
+  public static final int CALL_STATUS_TIMED_OUT = 6; // not in MediaPlayer2, the callback never came
+  public static final int CALL_STATUS_REJECTED = 7; // not in MediaPlayer2, the task queue was full
   @IntDef(flag = false, /*prefix = "CALL_STATUS",*/ value = {
     CALL_STATUS_NO_ERROR,
     CALL_STATUS_ERROR_UNKNOWN,
@@ -109,37 +146,139 @@ public class TaskCoordinator implements ExoPlayerWrapper.WrapperListener, AutoCl
     CALL_STATUS_BAD_VALUE,
     CALL_STATUS_PERMISSION_DENIED,
     CALL_STATUS_ERROR_IO,
-    CALL_STATUS_SKIPPED})
+    CALL_STATUS_SKIPPED,
+    CALL_STATUS_TIMED_OUT,
+    CALL_STATUS_REJECTED})
   @Retention(RetentionPolicy.SOURCE)
   public @interface CallStatus {}
 
-  private static final int POLL_BUFFER_INTERVAL_MS = 1000;
+  // Coalescing keys - a queued task is replaced by a newer one with the same key
+  public static final int COALESCE_NONE = 0;
+  public static final int COALESCE_SEEK = 1;
+  public static final int COALESCE_VOLUME = 2;
+  @IntDef(flag = false, value = {
+    COALESCE_NONE,
+    COALESCE_SEEK,
+    COALESCE_VOLUME})
+  @Retention(RetentionPolicy.SOURCE)
+  public @interface CoalesceKey {}
+
+  // Overflow policies - what happens to a task that arrives when the queue is at capacity
+  public static final int OVERFLOW_REJECT = 0; // the new task is rejected
+  public static final int OVERFLOW_DROP_OLDEST = 1; // the oldest queued task is rejected to make room
+  public static final int OVERFLOW_COALESCE = 2; // a queued task with the new task's coalescing key is skipped, otherwise the new task is rejected
+  @IntDef(flag = false, value = {
+    OVERFLOW_REJECT,
+    OVERFLOW_DROP_OLDEST,
+    OVERFLOW_COALESCE})
+  @Retention(RetentionPolicy.SOURCE)
+  public @interface OverflowPolicy {}
+
+  // Resources - the parts of the player a task reads or changes, tasks that share none can overlap
+  public static final int RESOURCE_NONE = 0;
+  public static final int RESOURCE_TRANSPORT = 1; // play, pause, prepare
+  public static final int RESOURCE_POSITION = 1 << 1;
+  public static final int RESOURCE_PLAYLIST = 1 << 2;
+  public static final int RESOURCE_VOLUME = 1 << 3;
+  public static final int RESOURCE_ATTRIBUTES = 1 << 4;
+  public static final int RESOURCE_MODES = 1 << 5; // repeat and shuffle
+  public static final int RESOURCE_ALL = ~0;
+  @IntDef(flag = true, value = {
+    RESOURCE_NONE,
+    RESOURCE_TRANSPORT,
+    RESOURCE_POSITION,
+    RESOURCE_PLAYLIST,
+    RESOURCE_VOLUME,
+    RESOURCE_ATTRIBUTES,
+    RESOURCE_MODES,
+    RESOURCE_ALL})
+  @Retention(RetentionPolicy.SOURCE)
+  public @interface Resource {}
+
+  // Lanes - interactive tasks (transport controls) go ahead of normal ones they don't depend on
+  public static final int LANE_NORMAL = 0;
+  public static final int LANE_INTERACTIVE = 1;
+  @IntDef(flag = false, value = {
+    LANE_NORMAL,
+    LANE_INTERACTIVE})
+  @Retention(RetentionPolicy.SOURCE)
+  public @interface Lane {}
+
+  // The callback an instruction waits on before its task can take the next step
+  static final int AWAIT_NOTHING = 0;
+  static final int AWAIT_PREPARED = 1;
+  static final int AWAIT_SEEK = 2;
+  @IntDef(flag = false, value = {
+    AWAIT_NOTHING,
+    AWAIT_PREPARED,
+    AWAIT_SEEK})
+  @Retention(RetentionPolicy.SOURCE)
+  @interface Awaits {}
+
+  private static final long POLL_BUFFER_MIN_INTERVAL_MS = 500L;
+  private static final long POLL_BUFFER_MAX_INTERVAL_MS = 8000L;
+
+  // Trace section names, built once so that tracing doesn't allocate
+  private static final String TRACE_TASK_STEP = "SMP2 task step";
+  private static final String[] TRACE_OPS = new String[TaskMetrics.OP_COUNT];
+  static {
+    for (int op = 0; op < TaskMetrics.OP_COUNT; op++) TRACE_OPS[op] = "SMP2 " + TaskMetrics.getOpName(op);
+  }
+  private static final long PREPARE_TIMEOUT_MS = 30000L; // remote items can be slow to prepare
+  private static final long SEEK_TIMEOUT_MS = 10000L;
 
   public TaskCoordinator(Context context, BufferListener listener, ExoWrapperFactory ExoFactory) {
-    // Thread related
-    taskHandlerThread = new HandlerThread("SimpleAudioPlayer");
-    taskHandlerThread.start();
-    taskHandler = new Handler(taskHandlerThread.getLooper());
+    this(context, listener, ExoFactory, false);
+  }
 
-    exoHandlerThread = new HandlerThread("SimpleAudioPlayerExo");
-    exoHandlerThread.start();
-    exoHandler = new Handler(exoHandlerThread.getLooper());
+  /**
+   * @param singleLooper If true the tasks and the exoplayer share one thread. Instructions then run
+   *                     inline and steps advance without a context switch, at the cost of player
+   *                     events and task side-effects competing for the same looper.
+   */
+  public TaskCoordinator(Context context, BufferListener listener, ExoWrapperFactory ExoFactory, boolean singleLooper) {
+    this(context, listener, ExoFactory, LooperScheduler.start("SimpleAudioPlayer"), singleLooper);
+  }
+
+  private TaskCoordinator(Context context, BufferListener listener, ExoWrapperFactory ExoFactory, Scheduler taskScheduler, boolean singleLooper) {
+    this(context, listener, ExoFactory, taskScheduler, singleLooper ? taskScheduler : LooperScheduler.start("SimpleAudioPlayerExo"));
+  }
+
+  /**
+   * Runs the coordinator on the given schedulers, which it quits when it is closed. They can be the
+   * same scheduler, as with singleLooper. The wrapper is given the exo scheduler's looper, or null if
+   * it doesn't have one, so executor backed schedulers need a wrapper that doesn't use exoplayer.
+   */
+  public TaskCoordinator(Context context, BufferListener listener, ExoWrapperFactory ExoFactory, Scheduler taskScheduler, Scheduler exoScheduler) {
+    // Thread related
+    this.taskScheduler = taskScheduler;
+    this.exoScheduler = exoScheduler;
+    closing = new AtomicReference<>();
 
     // Task related
-    taskQueue = new ArrayDeque<>();
+    inbox = new ConcurrentLinkedQueue<>();
+    retired = new ConcurrentLinkedQueue<>();
+    isDrainScheduled = new AtomicBoolean(false);
+    tokenForDrain = this::drainTasks;
+    taskQueue = new ConcurrentLinkedDeque<>();
+    inFlight = new ArrayList<>();
+    steppingTask = new ThreadLocal<>();
     tokenForBufferPolling = new PollBufferRunnable();
+    interactiveInstructions = new ConcurrentLinkedQueue<>();
+    isInteractivePosted = new AtomicBoolean(false);
+    tokenForInteractive = this::runInteractiveInstructions;
+    awaitingPrepared = new ArrayDeque<>();
+    awaitingSeek = new ArrayDeque<>();
+    newlyWatched = new ConcurrentLinkedQueue<>();
+    watched = new ArrayList<>();
+    tokenForWatchdog = this::checkDeadlines;
+    stallCount = new AtomicInteger(0);
 
     // ExoPlayer related
-    exoplayer = ExoFactory.getWrapper(context, exoHandlerThread.getLooper(), this);
+    Looper exoLooper = (exoScheduler instanceof LooperScheduler) ? ((LooperScheduler) exoScheduler).getLooper() : null;
+    exoplayer = ExoFactory.getWrapper(context, exoLooper, this);
     bufferListener = listener;
 
-    // Locks
-    lockForTaskQ = new Object();
-    lockForTaskHandler = new Object();
-    lockForExoHandler = new Object();
-    lockForState = new Object();
-    lockForOverride = new Object();
-
     reset();
   }
 
@@ -150,104 +289,365 @@ public class TaskCoordinator implements ExoPlayerWrapper.WrapperListener, AutoCl
    * exoplayer.
    */
   public void reset() {
-    MediaPlayerTask curr;
-    synchronized (lockForTaskQ) {
-      taskQueue.forEach(action -> action.future.cancel(true));
-      taskQueue.clear(); // remove any queue tasks
-      curr = currentTask; // avoid current task changing on us from another thread
+    if (taskScheduler.isCurrentThread()) {
+      cancelAllTasks();
+    } else {
+      SettableFuture<Void> cancelled = SettableFuture.create();
+      Preconditions.checkState(taskScheduler.post(() -> {
+        cancelAllTasks();
+        cancelled.set(null);
+      }));
+      getPlayerFuture(cancelled); // anything that is part way through a step is finished first
     }
 
-    if (curr != null) {
-      synchronized (currentTask) { // other threads can't interfere
+    processNowAndWaitForResult((Callable<Void>) () -> {
+      resetPlayer();
+      return null;
+    });
+  }
+
+  /**
+   * Same as reset, but without blocking the caller. Queued tasks are cancelled straight away, and
+   * the exoplayer is rebuilt on its own thread after any instructions that are already on it.
+   * @return Future that completes once the exoplayer has been reset
+   */
+  public ListenableFuture<Void> resetAsync() {
+    Preconditions.checkState(closing.get() == null);
+    SettableFuture<Void> done = SettableFuture.create();
+
+    teardown(done, () -> {
+      resetPlayer();
+      done.set(null);
+    });
+    return done;
+  }
+
+  /**
+   * Cancels every task, then runs the teardown on the exo thread. Neither step waits, if the caller
+   * is already on the right thread it just runs inline.
+   */
+  private void teardown(SettableFuture<Void> done, Runnable onExoThread) {
+    MediaPlayerTask task;
+    while ((task = inbox.poll()) != null) task.cancel(); // no need to wait for the task thread
+
+    runOrPost(taskScheduler, true, done, () -> {
+      cancelAllTasks();
+      runOrPost(exoScheduler, false, done, () -> { // behind the instructions already posted, so they can't touch the new player
         try {
-          while (!curr.taskComplete) {
-            curr.wait();
-          }
-        } catch (InterruptedException e) {
-          // Ignore interruption
+          onExoThread.run();
+        } catch (Throwable e) {
+          done.setException(e);
         }
-      }
+      });
+    });
+  }
+
+  private static void runOrPost(Scheduler scheduler, boolean atFront, SettableFuture<Void> done, Runnable runnable) {
+    if (scheduler.isCurrentThread()) {
+      runnable.run();
+      return;
     }
 
-    processNowAndWaitForResult((Callable<Void>) () -> {
-      exoplayer.reset();
-      return null;
-    });
+    boolean success = atFront ? scheduler.postAtFront(runnable) : scheduler.post(runnable);
+    if (!success) done.setException(new IllegalStateException("The player's threads have stopped"));
+  }
 
-    synchronized (lockForState) {
-      isPolling = false;
+  /**
+   * Rebuilds the exoplayer and forgets anything that was waiting on the old one. Must be called on
+   * the exo thread.
+   */
+  private void resetPlayer() {
+    exoplayer.reset();
+    isPolling = false;
+    exoScheduler.remove(tokenForBufferPolling);
+    awaitingPrepared.clear(); // their tasks have been cancelled
+    awaitingSeek.clear();
+  }
+
+  /**
+   * Cancels the futures of the tasks in flight and everything that is queued. Must be called on the
+   * task thread.
+   */
+  private void cancelAllTasks() {
+    MediaPlayerTask task;
+    while ((task = inbox.poll()) != null) task.cancel();
+    while ((task = taskQueue.poll()) != null) task.cancel();
+
+    for (MediaPlayerTask running : inFlight) {
+      running.cancel(); // it may be waiting on a callback that will never come
     }
+    inFlight.clear();
+    inFlightCount = 0;
+    retired.clear();
+
+    taskScheduler.remove(tokenForWatchdog);
+    newlyWatched.clear();
+    watched.clear();
   }
 
   /**
-   * Puts the MediaTask monad of instructions in a MediaPlayerTask for going on the looper.
+   * Puts the MediaTask monad of instructions in a MediaPlayerTask for going on the looper. If the
+   * MediaTask has a coalescing key, any task with the same key that is still waiting in the queue
+   * is dropped and its future completes as skipped.
    * @param mediaTask Monad representing the sequence of instructions for the exoplayer
    * @return Future representing the completion of the instructions
    */
   public SettableFuture<SessionPlayer.PlayerResult> submit(MediaTask<Integer, PlayerResult> mediaTask) {
-    MediaPlayerTask mpt = new MediaPlayerTask(mediaTask);
+    MediaPlayerTask mpt = new MediaPlayerTask(mediaTask, false);
     return addTask(mpt);
   }
 
+  /**
+   * Sequences several MediaTasks in to a single MediaPlayerTask that is driven from the exo thread.
+   * Instructions that complete immediately run back to back within one post, rather than each one
+   * bouncing between the task and exo threads. Like flatMap, the batch stops at the first failure,
+   * with one exception: an immediate instruction that shares no resources with a waiting one before
+   * it is moved ahead of it, see InstructionOptimizer, so it still runs if that one fails.
+   * @param mediaTasks MediaTasks to run, in order
+   * @return Future representing the completion of the whole batch, holding the result of the last
+   * task or of the first one to fail
+   */
+  public SettableFuture<SessionPlayer.PlayerResult> submitBatch(List<MediaTask<Integer, PlayerResult>> mediaTasks) {
+    Preconditions.checkArgument(!mediaTasks.isEmpty(), "A batch needs at least one task");
+
+    int resources = RESOURCE_NONE;
+    for (MediaTask<Integer, PlayerResult> task : mediaTasks) {
+      resources |= task.getResources(); // unlike flatMap in general, every task is known up front
+    }
+
+    List<MediaTask<Integer, PlayerResult>> optimized = optimizeInstructions(mediaTasks);
+    MediaTask<Integer, PlayerResult> batch = optimized.get(0);
+    for (int i = 1; i < optimized.size(); i++) {
+      MediaTask<Integer, PlayerResult> next = optimized.get(i);
+      batch = batch.flatMap(pr -> next);
+    }
+
+    return addTask(new MediaPlayerTask(batch.touching(resources), true));
+  }
 
   /**
-   * Adds a task to the back of the queue. Because the queue might be empty (i.e. on first start up),
-   * ask to process tasks.
+   * Runs InstructionOptimizer over each run of tasks that are single instructions, with or without
+   * maps and foreaches after them. Anything else, such as the result of flatMap, is left as it is.
+   */
+  private List<MediaTask<Integer, PlayerResult>> optimizeInstructions(List<MediaTask<Integer, PlayerResult>> mediaTasks) {
+    List<MediaTask<Integer, PlayerResult>> optimized = new ArrayList<>();
+    int runStart = 0;
+    for (int i = 0; i <= mediaTasks.size(); i++) {
+      if (i < mediaTasks.size() && mediaTasks.get(i).getInstruction() != null) continue;
+
+      if (i - runStart > 1) {
+        for (List<MediaTask<Integer, PlayerResult>> group : InstructionOptimizer.optimize(mediaTasks.subList(runStart, i))) {
+          List<Instruction> instructions = new ArrayList<>(group.size());
+          for (MediaTask<Integer, PlayerResult> task : group) instructions.add(task.getInstruction());
+          optimized.add(new MediaTask<>(instructionGroup(instructions, group)));
+        }
+      } else if (i - runStart == 1) {
+        optimized.add(mediaTasks.get(runStart));
+      }
+      if (i < mediaTasks.size()) optimized.add(mediaTasks.get(i));
+      runStart = i + 1;
+    }
+    return optimized;
+  }
+
+
+  /**
+   * Adds a task to the inbox and makes sure the task thread will get round to it. Safe to call from
+   * any thread, producers never wait on each other or on the task thread. The queue capacity counts
+   * the inbox too, so a full queue turns tasks away here rather than once the task thread gets to them.
    * @param task MediaPlayerTask to be queued up.
    */
   private SettableFuture<SessionPlayer.PlayerResult> addTask(MediaPlayerTask task) {
-    synchronized (lockForTaskQ) {
-      taskQueue.add(task);
-      processTask();
+    if (waitingCount.incrementAndGet() > queueCapacity && !makeRoomFor(task)) {
+      rejectedCount.incrementAndGet();
+      task.skip(CALL_STATUS_REJECTED); // takes it off the count again
       return task.future;
     }
+
+    inbox.offer(task);
+    if (task.lane == LANE_INTERACTIVE) {
+      scheduleUrgentDrain();
+    } else {
+      scheduleDrain();
+    }
+
+    LooperWatchdog w = watchdog;
+    if (w != null) w.wake();
+    return task.future;
+  }
+
+  private void scheduleDrain() {
+    if (isDrainScheduled.compareAndSet(false, true)) {
+      taskScheduler.post(tokenForDrain);
+    }
+  }
+
+  /**
+   * Makes sure a drain is at the front of the task looper, rather than behind the steps and
+   * side-effects of other tasks. At worst this causes an extra drain, which does no harm.
+   */
+  private void scheduleUrgentDrain() {
+    isDrainScheduled.set(true);
+    taskScheduler.remove(tokenForDrain);
+    taskScheduler.postAtFront(tokenForDrain);
+  }
+
+  /**
+   * Moves everything from the inbox on to the queue, then starts every queued task that doesn't touch
+   * the resources of a task in flight, or of a task queued ahead of it. So independent tasks carry on
+   * while another one waits on exo, but tasks that do depend on each other still go in order.
+   * Interactive tasks are started first, so their instructions reach exo before the rest. This is the
+   * only consumer of the inbox and the queue, and it runs on the task thread.
+   */
+  private void drainTasks() {
+    isDrainScheduled.set(false);
+
+    MediaPlayerTask task;
+    while ((task = retired.poll()) != null) {
+      inFlight.remove(task);
+    }
+    inFlightCount = inFlight.size();
+    while ((task = inbox.poll()) != null) {
+      queueTask(task);
+    }
+
+    TaskMetrics m = metrics;
+    if (m != null) m.recordQueueDepth(waitingCount.get());
+
+    if (hasInteractive()) startReadyTasks(LANE_INTERACTIVE);
+    startReadyTasks(LANE_NORMAL);
+  }
+
+  private boolean hasInteractive() {
+    for (MediaPlayerTask task : taskQueue) {
+      if (task.lane == LANE_INTERACTIVE) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Starts the queued tasks that are free to go, considering only those in the given lane, or in any
+   * lane for LANE_NORMAL. Every queued task still blocks the ones behind it that share its resources.
+   */
+  private void startReadyTasks(@Lane int lane) {
+    int blocked = RESOURCE_NONE;
+    for (int i = 0; i < inFlight.size(); i++) {
+      blocked |= inFlight.get(i).resources;
+    }
+
+    Iterator<MediaPlayerTask> queued = taskQueue.iterator();
+    while (queued.hasNext() && blocked != RESOURCE_ALL) {
+      MediaPlayerTask task = queued.next();
+      if (!task.isWaiting()) { // dropped by another thread to make room
+        queued.remove();
+        continue;
+      }
+      if ((task.resources & blocked) == 0 && task.lane >= lane) {
+        queued.remove();
+        startTask(task);
+      }
+      blocked |= task.resources; // anything later that shares these has to wait its turn
+    }
+  }
+
+  private void startTask(MediaPlayerTask task) {
+    inFlight.add(task);
+    inFlightCount = inFlight.size(); // before it leaves the waiting count, so it is never counted as neither
+    if (task.scheduler == taskScheduler) {
+      task.run(); // already on the right thread
+    } else {
+      task.scheduler.post(task);
+    }
   }
 
   /**
-   * Posts the next task to the handler, if appropriate. If a task is currently running, processTask
-   * will be called at the end of it.
+   * Puts a task on the back of the queue. If it has a coalescing key, anything waiting in the queue
+   * with the same key is superseded and skipped. Capacity has already been checked by addTask.
    */
-  @GuardedBy("lockForTaskQ")
-  private void processTask() {
-    if (currentTask == null && !taskQueue.isEmpty()) {
-      MediaPlayerTask task = taskQueue.removeFirst();
-      currentTask = task;
-      taskHandler.post(task);
+  private void queueTask(MediaPlayerTask task) {
+    if (!task.isWaiting()) return; // dropped while it was in the inbox
+
+    if (task.coalesceKey != COALESCE_NONE) {
+      Iterator<MediaPlayerTask> queued = taskQueue.iterator();
+      while (queued.hasNext()) {
+        MediaPlayerTask superseded = queued.next();
+        if (superseded.coalesceKey == task.coalesceKey) {
+          queued.remove();
+          superseded.skip(CALL_STATUS_SKIPPED);
+        }
+      }
+    }
+
+    taskQueue.add(task);
+  }
+
+  /**
+   * Drops a waiting task to make room for a new one, if the overflow policy allows it. Safe to call
+   * from any thread, the dropped task is only marked finished and the task thread clears it away.
+   * Waiting tasks are looked at oldest first, the queue and then the inbox.
+   * @return False if the new task should be rejected instead
+   */
+  private boolean makeRoomFor(MediaPlayerTask task) {
+    @OverflowPolicy int policy = overflowPolicy;
+    if (policy == OVERFLOW_REJECT) return false;
+    if (policy == OVERFLOW_COALESCE && task.coalesceKey == COALESCE_NONE) return false; // supersedes nothing
+    return dropWaiting(taskQueue, task, policy) || dropWaiting(inbox, task, policy);
+  }
+
+  private boolean dropWaiting(Iterable<MediaPlayerTask> waiting, MediaPlayerTask task, @OverflowPolicy int policy) {
+    for (MediaPlayerTask queued : waiting) {
+      if (policy == OVERFLOW_DROP_OLDEST ? queued.skip(CALL_STATUS_REJECTED)
+        : queued.coalesceKey == task.coalesceKey && queued.skip(CALL_STATUS_SKIPPED)) {
+        droppedCount.incrementAndGet();
+        return true;
+      }
     }
+    return false;
   }
 
   /**
-   * Executes a task on the handler as soon as possible and blocks while it waits for the result.
+   * Executes a task on the scheduler as soon as possible and blocks while it waits for the result.
    * Throws an exception if the task isn't added to the looper successfully.
-   * @param callable Callable operations to be run on the handler
+   * @param callable Callable operations to be run on the exo thread
    * @param <T> Generic return type of the Callable
    * @return <T> Result of the callable
    */
   private <T> T processNowAndWaitForResult(Callable<T> callable) {
     SettableFuture<T> future = SettableFuture.create();
-    synchronized (lockForExoHandler) {
-      Preconditions.checkNotNull(exoHandlerThread);
-      boolean success = exoHandler.post(() -> {
-        try {
-          future.set(callable.call());
-        } catch (Throwable e) {
-          future.setException(e);
-        }
-      });
-      Preconditions.checkState(success);
+    Preconditions.checkState(closing.get() == null);
+    TaskMetrics m = metrics;
+    if (m != null) m.recordBlockingCall();
+
+    if (exoScheduler.isCurrentThread()) { // waiting on our own looper would never return
+      try {
+        return callable.call();
+      } catch (Exception e) {
+        throw new IllegalStateException(e);
+      }
     }
 
+    boolean success = exoScheduler.post(() -> {
+      try {
+        future.set(callable.call());
+      } catch (Throwable e) {
+        future.setException(e);
+      }
+    });
+    Preconditions.checkState(success);
+
     return getPlayerFuture(future);
   }
 
-  private void clearCurrentAndProcess() {
-    synchronized (lockForTaskQ) {
-      currentTask = null;
-      processTask();
-    }
+  /**
+   * Called when a task is done with, frees up its resources for the tasks waiting on them. Safe to
+   * call from any thread.
+   */
+  private void retireAndProcess(MediaPlayerTask task) {
+    retired.offer(task);
+    scheduleDrain();
   }
 
-  private static <T> T getPlayerFuture(SettableFuture<T> future) {
+  private static <T> T getPlayerFuture(Future<T> future) {
     try {
       T result;
       boolean wasInterrupted = false;
@@ -270,9 +670,24 @@ public class TaskCoordinator implements ExoPlayerWrapper.WrapperListener, AutoCl
     }
   }
 
+  /**
+   * Fallback for the load events, which report most progress. Backs off while nothing is changing,
+   * and stops altogether once the current item is completely buffered.
+   */
   private void pollBufferingState() {
-    exoplayer.updateBuffering();
-    exoHandler.postDelayed(tokenForBufferPolling, POLL_BUFFER_INTERVAL_MS);
+    int percent = exoplayer.updateBuffering();
+    if (percent >= 100) {
+      isPolling = false; // BUFFERING_STATE_COMPLETE, started again if the item changes
+      return;
+    }
+
+    if (percent == lastPolledPercent) {
+      pollInterval = Math.min(pollInterval * 2, POLL_BUFFER_MAX_INTERVAL_MS);
+    } else {
+      pollInterval = POLL_BUFFER_MIN_INTERVAL_MS;
+    }
+    lastPolledPercent = percent;
+    exoScheduler.postDelayed(tokenForBufferPolling, pollInterval);
   }
 
   // Convenience
@@ -283,97 +698,437 @@ public class TaskCoordinator implements ExoPlayerWrapper.WrapperListener, AutoCl
     }
 
 
-  private final Function<Integer, SessionPlayer.PlayerResult> mapToResult = (i -> new SessionPlayer.PlayerResult(bufferListener.convertStatus(i), exoplayer.getCurrentMediaItem()));
+  // One Bad per error status, a Bad holds no value so each can be shared by every task
+  @SuppressWarnings("unchecked")
+  private static final Bad<Integer, ?>[] FAILURES = (Bad<Integer, ?>[]) new Bad<?, ?>[CALL_STATUS_REJECTED + 1];
+  private static final Bad<Integer, ?> FAILURE_UNKNOWN = new Bad<>(CALL_STATUS_ERROR_UNKNOWN);
+  static {
+    for (int status = CALL_STATUS_INVALID_OPERATION; status < FAILURES.length; status++) {
+      FAILURES[status] = new Bad<>(status);
+    }
+  }
 
-  private Either<Integer, Integer> processInstruction(Op<Integer> op) {
-    Either<Integer, Integer> status;
+  static <A> Either<Integer, A> failure(@CallStatus int status) {
+    if (status > CALL_STATUS_NO_ERROR && status < FAILURES.length) return FAILURES[status].retype();
+    return status == CALL_STATUS_ERROR_UNKNOWN ? FAILURE_UNKNOWN.retype() : new Bad<>(status);
+  }
 
+  /**
+   * @return The status the op returned, or the one for the exception it threw
+   */
+  private @CallStatus int processInstruction(Op<Integer> op) {
     try {
-      status = new Good<>(op.get());
+      return op.get();
     } catch (IllegalStateException e) {
-      status = new Bad<>(CALL_STATUS_INVALID_OPERATION);
+      return CALL_STATUS_INVALID_OPERATION;
     } catch (IllegalArgumentException e) {
-      status = new Bad<>(CALL_STATUS_BAD_VALUE);
+      return CALL_STATUS_BAD_VALUE;
     } catch (SecurityException e) {
-      status = new Bad<>(CALL_STATUS_PERMISSION_DENIED);
+      return CALL_STATUS_PERMISSION_DENIED;
     } catch (IOException e) {
-      status = new Bad<>(CALL_STATUS_ERROR_IO);
+      return CALL_STATUS_ERROR_IO;
     } catch (Exception e) {
-      status = new Bad<>(CALL_STATUS_ERROR_UNKNOWN);
+      return CALL_STATUS_ERROR_UNKNOWN;
     }
+  }
+
+  private MediaTask<Integer, PlayerResult> mediaTaskWithErrorHandling(@TaskMetrics.Op int kind, Op<Integer> op) {
+    return mediaTaskWithErrorHandling(kind, op, AWAIT_NOTHING);
+  }
 
-    return status;
+  /**
+   * Wraps an instruction so that it runs on the exo thread and reports its outcome through a
+   * CompletionSlot of its own.
+   * @param kind What sort of instruction it is, for the metrics
+   * @param op The instruction
+   * @param awaits The callback that completes the instruction, or AWAIT_NOTHING if it completes
+   *               as soon as op returns
+   * @param args The arguments op has captured, kept with the task so it can be inspected
+   */
+  private MediaTask<Integer, PlayerResult> mediaTaskWithErrorHandling(@TaskMetrics.Op int kind, Op<Integer> op, @Awaits int awaits, Object... args) {
+    Instruction instruction = new Instruction(kind, awaits, op, args);
+    return new MediaTask<>(instructionGroup(Collections.singletonList(instruction), null), instruction);
   }
 
-  private MediaTask<Integer, PlayerResult> mediaTaskWithErrorHandling(Op<Integer> op) {
-    return mediaTaskWithErrorHandling(op, true);
+  /**
+   * Builds the Eval for instructions that go to the exo thread together, in one post, and report
+   * their outcome through a single CompletionSlot. They run in order and stop at the first failure.
+   * @param group The instructions, of which only the last may wait on a callback
+   * @param tasks The tasks the instructions were taken from, in the same order, or null. Once the
+   *              group is done, the maps and foreaches of each task whose instruction succeeded are
+   *              applied, and the value is what the last of them gave
+   */
+  private Supplier<Eval<Integer, PlayerResult>> instructionGroup(List<Instruction> group,
+                                                                  @Nullable List<MediaTask<Integer, PlayerResult>> tasks) {
+    return () -> {
+      GroupRun run = new GroupRun(steppingTask.get(), group, tasks); // owned by the task stepping through these instructions
+      if (exoScheduler.isCurrentThread()) {
+        run.run(); // already on the exo thread (batches), no need to go round the looper
+      } else if (run.owner.lane == LANE_INTERACTIVE) {
+        postInteractive(run); // nothing in flight depends on it, see drainTasks
+      } else {
+        exoScheduler.post(run);
+      }
+      return new Later<>(run, run);
+    };
   }
 
-  private MediaTask<Integer, PlayerResult> mediaTaskWithErrorHandling(Op<Integer> op, boolean isImmediate) {
-    return new MediaTask<>(() -> {
-      exoHandler.post(() -> {
-        Either<Integer, Integer> status = processInstruction(op);
-        if (isImmediate || !status.isGood()) {
-          synchronized (lockForOverride) {
-            overrideStatus = status.isGood() ? status.getValue() : status.getErrorValue();
-          }
-          currentTask.sendCompleteNotification();
+  /**
+   * One run of an instruction group. It is at once the slot the group resolves, the runnable posted
+   * to the exo thread, and the op and readiness of the Later the task steps through, so a run only
+   * allocates itself and that Later, then the result once it completes.
+   */
+  private final class GroupRun extends CompletionSlot implements Runnable, Supplier<Either<Integer, PlayerResult>>, BooleanSupplier {
+    private final List<Instruction> group;
+    private final @Nullable List<MediaTask<Integer, PlayerResult>> tasks;
+    private final Instruction last;
+    private final LooperWatchdog watchdog;
+    private final TaskMetrics metrics;
+    private final Tracer tracer;
+    private final long builtAt;
+
+    GroupRun(MediaPlayerTask owner, List<Instruction> group, @Nullable List<MediaTask<Integer, PlayerResult>> tasks) {
+      super(owner);
+      this.group = group;
+      this.tasks = tasks;
+      this.last = group.get(group.size() - 1);
+      this.watchdog = TaskCoordinator.this.watchdog;
+      this.metrics = TaskCoordinator.this.metrics;
+      this.tracer = TaskCoordinator.this.tracer;
+      this.builtAt = (metrics != null) ? System.nanoTime() : 0L;
+
+      Instruction first = group.get(0);
+      if (watchdog != null) {
+        if (owner.scheduler == taskScheduler) watchdog.lastTaskOp = first.kind;
+        else watchdog.lastExoOp = first.kind;
+      }
+      if (metrics != null && !owner.hasStartedInstructions) {
+        owner.hasStartedInstructions = true;
+        metrics.record(first.kind, TaskMetrics.PHASE_QUEUE_WAIT, builtAt - owner.queuedAt);
+      }
+    }
+
+    /**
+     * Runs the instructions, on the exo thread.
+     */
+    @Override
+    public void run() {
+      int status = CALL_STATUS_NO_ERROR;
+      int succeeded = 0;
+      for (int i = 0; i < group.size() && status == CALL_STATUS_NO_ERROR; i++) {
+        Instruction next = group.get(i);
+        if (watchdog != null) watchdog.lastExoOp = next.kind;
+        long startedAt = (metrics != null) ? System.nanoTime() : 0L;
+        tracer.beginSection(TRACE_OPS[next.kind]);
+        try {
+          status = processInstruction(next.op);
+        } finally {
+          tracer.endSection();
         }
-      });
+        if (metrics != null) metrics.record(next.kind, TaskMetrics.PHASE_EXECUTION, System.nanoTime() - startedAt);
+        if (status == CALL_STATUS_NO_ERROR) succeeded++;
+      }
+      opsSucceeded = succeeded;
+      exoplayer.publishStateIfChanged();
+      if (status != CALL_STATUS_NO_ERROR || last.isImmediate()) {
+        resolve(status);
+      } else {
+        await(this, last.awaits);
+      }
+    }
 
-      return new Later<>(() -> {
-        Either<Integer, Integer> st;
-        synchronized (lockForOverride) {
-          if (overrideStatus == CALL_STATUS_NO_ERROR) {
-            st = new Good<>(overrideStatus);
-          } else {
-            st = new Bad<>(overrideStatus); // short circuit the rest of the sequence
-          }
+    /**
+     * The outcome, once resolved, on the thread stepping the task.
+     */
+    @Override
+    public Either<Integer, PlayerResult> get() {
+      if (metrics != null) metrics.record(last.kind, TaskMetrics.PHASE_COMPLETION, System.nanoTime() - builtAt);
+      int status = getStatus();
+      if (status == CALL_STATUS_NO_ERROR) {
+        PlayerResult result = new PlayerResult(bufferListener.convertStatus(status), exoplayer.getCurrentMediaItem());
+        return new Good<>(tasks == null ? result : applyPipelines(tasks, tasks.size(), result));
+      } else {
+        int done = Math.min(opsSucceeded, group.size() - 1); // the last one's callback may have failed
+        if (tasks != null && done > 0) { // the instructions before the failure still happened
+          applyPipelines(tasks, done, new PlayerResult(bufferListener.convertStatus(CALL_STATUS_NO_ERROR), exoplayer.getCurrentMediaItem()));
         }
-        return st;
-      });
+        return failure(status); // short circuit the rest of the sequence
+      }
+    }
+
+    @Override
+    public boolean getAsBoolean() {
+      return isResolved();
+    }
+  }
+
+  /**
+   * Applies the maps and foreaches of the first count tasks, each to the result of the group their
+   * instructions ran in.
+   * @return What the last of them gave
+   */
+  private static PlayerResult applyPipelines(List<MediaTask<Integer, PlayerResult>> tasks, int count, PlayerResult result) {
+    PlayerResult value = result;
+    for (int i = 0; i < count; i++) value = tasks.get(i).applyPipeline(result);
+    return value;
+  }
+
+  /**
+   * Queues an instruction to run on the exo thread ahead of anything already posted there. Posting
+   * each one at the front would run them newest first, so they share one post at the front and
+   * run from there oldest first.
+   */
+  private void postInteractive(Runnable instruction) {
+    interactiveInstructions.offer(instruction);
+    if (isInteractivePosted.compareAndSet(false, true)) {
+      exoScheduler.postAtFront(tokenForInteractive);
+    }
+  }
+
+  private void runInteractiveInstructions() {
+    isInteractivePosted.set(false); // anything offered from here on gets a post of its own
+    Runnable instruction;
+    while ((instruction = interactiveInstructions.poll()) != null) {
+      instruction.run();
+    }
+  }
+
+  /**
+   * Registers a slot to be resolved by a callback, correlated with the exo request that was just
+   * made. Must be called on the exo thread.
+   */
+  private void await(CompletionSlot slot, @Awaits int awaits) {
+    if (awaits == AWAIT_PREPARED) {
+      slot.correlationId = exoplayer.getLastPrepareId();
+      slot.deadline = taskScheduler.uptimeMillis() + prepareTimeoutMs;
+      awaitingPrepared.add(slot);
+    } else {
+      slot.correlationId = exoplayer.getLastSeekId();
+      slot.deadline = taskScheduler.uptimeMillis() + seekTimeoutMs;
+      awaitingSeek.add(slot);
+    }
+
+    newlyWatched.offer(slot);
+    taskScheduler.post(tokenForWatchdog); // re-arms the timer in case this is the earliest deadline
+  }
+
+  /**
+   * The watchdog, runs on the task thread. Any slot that is still waiting after its deadline is
+   * resolved as timed out, so its task fails and the queue moves on. Then the timer is set for the
+   * earliest deadline left, if there is one.
+   */
+  private void checkDeadlines() {
+    taskScheduler.remove(tokenForWatchdog); // only ever one timer
+
+    CompletionSlot slot;
+    while ((slot = newlyWatched.poll()) != null) {
+      watched.add(slot);
+    }
+
+    long now = taskScheduler.uptimeMillis();
+    long next = Long.MAX_VALUE;
+    Iterator<CompletionSlot> slots = watched.iterator();
+    while (slots.hasNext()) {
+      slot = slots.next();
+      if (slot.isResolved()) {
+        slots.remove();
+      } else if (slot.deadline <= now) {
+        slots.remove();
+        if (slot.resolve(CALL_STATUS_TIMED_OUT)) {
+          int stalls = stallCount.incrementAndGet();
+          Log.w(logTag, "Gave up waiting on exo, " + stalls + " stall(s) so far");
+          stopAwaiting(slot);
+        }
+      } else {
+        next = Math.min(next, slot.deadline);
+      }
+    }
+
+    if (next != Long.MAX_VALUE) {
+      taskScheduler.postDelayed(tokenForWatchdog, next - now);
+    }
+  }
+
+  /**
+   * Starts recording latency metrics, reported to the listener each time a task finishes. Should be
+   * set before any tasks are submitted.
+   * @param listener Listener for the metrics, or null to stop recording
+   */
+  public void setMetricsListener(@Nullable TaskMetrics.Listener listener) {
+    metrics = (listener != null) ? new TaskMetrics() : null;
+    metricsListener = listener;
+  }
+
+  /**
+   * Limits how many tasks can be waiting to start, whether or not the task thread has got to them
+   * yet, tasks in flight aren't counted. When the limit is reached the new task completes with
+   * CALL_STATUS_REJECTED, unless the policy makes room for it: OVERFLOW_DROP_OLDEST rejects the
+   * oldest waiting task instead, and OVERFLOW_COALESCE skips a waiting task the new one supersedes,
+   * as if it had got to the queue. Unbounded by default.
+   * @param capacity Most tasks that can be queued at once, at least 1
+   * @param policy Which task is rejected when the queue is full
+   */
+  public void setQueueCapacity(int capacity, @OverflowPolicy int policy) {
+    Preconditions.checkArgument(capacity > 0);
+    overflowPolicy = policy;
+    queueCapacity = capacity;
+  }
+
+  /**
+   * @return Number of new tasks that were rejected because the queue was full
+   */
+  public long getRejectedTaskCount() {
+    return rejectedCount.get();
+  }
+
+  /**
+   * @return Number of queued tasks that were rejected to make room for newer ones
+   */
+  public long getDroppedTaskCount() {
+    return droppedCount.get();
+  }
+
+  /**
+   * Replaces the tracer that sections are written to, Tracer.SYSTEM by default. Should be set
+   * before any tasks are submitted, so that no section is ended on a different tracer.
+   */
+  public void setTracer(@NonNull Tracer tracer) {
+    this.tracer = Preconditions.checkNotNull(tracer);
+    exoScheduler.post(() -> exoplayer.setTracer(tracer));
+  }
+
+  /**
+   * Starts watching both loopers for stalls, see LooperWatchdog. They are watched from a thread
+   * shared by every coordinator, and only while there are tasks to run. Stalls are logged, and
+   * reported to the metrics listener if there is one.
+   * @param thresholdMs How late a looper can be in getting to a message before it counts as stalled
+   */
+  public void setStallThreshold(long thresholdMs) {
+    Preconditions.checkArgument(thresholdMs > 0);
+    LooperWatchdog previous = watchdog;
+    if (previous != null) previous.stop();
+
+    LooperWatchdog w = new LooperWatchdog(taskScheduler, exoScheduler, thresholdMs,
+      () -> waitingCount.get() > 0 || inFlightCount > 0, (looperName, lagMs, instruction) -> {
+      TaskMetrics.Listener listener = metricsListener;
+      if (listener != null) listener.onLooperStalled(looperName, lagMs, instruction);
+    });
+    watchdog = w;
+    w.start();
+  }
+
+  /**
+   * @return Metrics recorded so far, or null if no metrics listener has been set
+   */
+  public @Nullable TaskMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * @return How many instructions have timed out waiting on an exo callback, since the coordinator
+   * was created
+   */
+  public int getStallCount() {
+    return stallCount.get();
+  }
+
+  /**
+   * @return How many instructions are waiting on a prepare or seek callback, call on the exo thread
+   */
+  int getAwaitingCount() {
+    return awaitingPrepared.size() + awaitingSeek.size();
+  }
+
+  /**
+   * Sets how long prepare and seek instructions wait for their callback before failing with
+   * CALL_STATUS_TIMED_OUT. Applies to instructions that start waiting after this call.
+   */
+  public void setCallbackTimeouts(long prepareTimeoutMs, long seekTimeoutMs) {
+    Preconditions.checkArgument(prepareTimeoutMs > 0 && seekTimeoutMs > 0);
+    this.prepareTimeoutMs = prepareTimeoutMs;
+    this.seekTimeoutMs = seekTimeoutMs;
+  }
+
+  /**
+   * Resolves every waiting slot whose request has been handled, ids only ever increase so they are
+   * in order. Callbacks from any other thread are moved on to the exo thread first.
+   * @param awaiting Slots waiting on the callback
+   * @param id Correlation id of the latest request handled
+   * @param status CallStatus to resolve them with
+   */
+  private void resolveAwaiting(ArrayDeque<CompletionSlot> awaiting, int id, @CallStatus int status) {
+    if (!exoScheduler.isCurrentThread()) {
+      exoScheduler.post(() -> resolveAwaiting(awaiting, id, status));
+      return;
+    }
+
+    CompletionSlot slot;
+    while ((slot = awaiting.peek()) != null && slot.correlationId <= id) {
+      awaiting.poll();
+      slot.resolve(status);
+    }
+  }
+
+  /**
+   * Takes a slot that has timed out off its deque, so a late callback can't get to it.
+   */
+  private void stopAwaiting(CompletionSlot slot) {
+    if (!exoScheduler.isCurrentThread()) {
+      exoScheduler.post(() -> stopAwaiting(slot));
+      return;
+    }
 
-    }).map(mapToResult);
+    if (!awaitingPrepared.remove(slot)) awaitingSeek.remove(slot);
   }
 
   // SessionPlayer Implementation
 
   public @NonNull MediaTask<Integer, PlayerResult> play() {
+    return play(() -> true);
+  }
 
-    return mediaTaskWithErrorHandling(() -> {
+
+  /**
+   * @param mayPlay Asked on the exo thread as the instruction runs, e.g. for audio focus. If it
+   *                says no, the instruction fails with CALL_STATUS_PERMISSION_DENIED.
+   */
+  public @NonNull MediaTask<Integer, PlayerResult> play(@NonNull BooleanSupplier mayPlay) {
+
+    return mediaTaskWithErrorHandling(TaskMetrics.OP_PLAY, () -> {
+      if (!mayPlay.getAsBoolean()) return CALL_STATUS_PERMISSION_DENIED;
       exoplayer.play();
       return CALL_STATUS_NO_ERROR;
-    });
+    }).touching(RESOURCE_TRANSPORT | RESOURCE_POSITION).inLane(LANE_INTERACTIVE);
 
   }
 
 
   public @NonNull MediaTask<Integer, PlayerResult> pause() {
 
-    return mediaTaskWithErrorHandling(() -> {
+    return mediaTaskWithErrorHandling(TaskMetrics.OP_PAUSE, () -> {
       exoplayer.pause();
       return CALL_STATUS_NO_ERROR;
-    });
+    }).touching(RESOURCE_TRANSPORT).inLane(LANE_INTERACTIVE);
 
   }
 
 
   public @NonNull MediaTask<Integer, PlayerResult> prepare() {
 
-    return mediaTaskWithErrorHandling(() -> {
+    return mediaTaskWithErrorHandling(TaskMetrics.OP_PREPARE, () -> {
       exoplayer.prepare();
       return CALL_STATUS_NO_ERROR;
-    }, false);
+    }, AWAIT_PREPARED).touching(RESOURCE_TRANSPORT | RESOURCE_POSITION);
 
   }
 
 
   public @NonNull MediaTask<Integer, PlayerResult> seekTo(long position) {
 
-    return mediaTaskWithErrorHandling(() -> {
+    return mediaTaskWithErrorHandling(TaskMetrics.OP_SEEK, () -> {
       exoplayer.seekTo(position);
       return CALL_STATUS_NO_ERROR;
-    }, false);
+    }, AWAIT_SEEK, position).touching(RESOURCE_POSITION).coalescing(COALESCE_SEEK);
 
   }
 
@@ -383,128 +1138,149 @@ public class TaskCoordinator implements ExoPlayerWrapper.WrapperListener, AutoCl
 
   public @NonNull MediaTask<Integer, PlayerResult> setAudioAttributes(@NonNull AudioAttributesCompat attributes) {
 
-    return mediaTaskWithErrorHandling(() -> {
+    return mediaTaskWithErrorHandling(TaskMetrics.OP_ATTRIBUTES, () -> {
       exoplayer.setAudioAttributes(attributes);
       return CALL_STATUS_NO_ERROR;
-    });
+    }, AWAIT_NOTHING, attributes).touching(RESOURCE_ATTRIBUTES);
 
   }
 
 
+  // The getters below read the snapshot last published on the exo thread, so they never block
+
   public long getCurrentPosition() {
-    long pos = processNowAndWaitForResult(() -> exoplayer.getCurrentPosition());
-//    Log.d(logTag, "getCurrentPosition - " + pos);
+    long pos = exoplayer.getSnapshot().getPosition(SystemClock.elapsedRealtime());
     if (pos == ExoPlayerWrapper.UNKNOWN_TIME) return SessionPlayer.UNKNOWN_TIME;
     return pos;
   }
 
 
   public long getDuration() {
-    return processNowAndWaitForResult(() -> exoplayer.getDuration());
+    return exoplayer.getSnapshot().duration;
   }
 
 
   public long getBufferedPosition() {
-    return processNowAndWaitForResult(() -> exoplayer.getBufferedPosition());
+    return exoplayer.getSnapshot().bufferedPosition;
   }
 
 
   public float getPlaybackSpeed() {
-    return processNowAndWaitForResult(() -> exoplayer.getPlaybackParams().speed);
+    return exoplayer.getSnapshot().playbackSpeed;
   }
 
 
   public @NonNull MediaTask<Integer, PlayerResult> setPlaylist(@NonNull List<MediaItem> list) {
 
-    return mediaTaskWithErrorHandling(() -> {
+    return mediaTaskWithErrorHandling(TaskMetrics.OP_PLAYLIST, () -> {
       exoplayer.setPlaylist(list);
       return CALL_STATUS_NO_ERROR;
-    });
+    }, AWAIT_NOTHING, list).touching(RESOURCE_PLAYLIST | RESOURCE_POSITION);
 
   }
 
 
   public @Nullable AudioAttributesCompat getAudioAttributes() {
-//    Log.d(logTag, "getAudioAttributes");
-    return processNowAndWaitForResult(() -> exoplayer.getAudioAttributes());
+    return exoplayer.getSnapshot().audioAttributes;
+  }
+
+
+  /**
+   * Reads everything in the snapshot fresh from the exoplayer, in one post to the exo thread. Use it
+   * when the published snapshot may be slightly behind, e.g. straight after a command completes.
+   * @return Future holding a snapshot captured on the exo thread
+   */
+  public ListenableFuture<PlayerSnapshot> queryAsync() {
+    SettableFuture<PlayerSnapshot> result = SettableFuture.create();
+    Runnable query = () -> {
+      exoplayer.publishState();
+      result.set(exoplayer.getSnapshot());
+    };
+
+    if (exoScheduler.isCurrentThread()) {
+      query.run();
+    } else if (closing.get() != null || !exoScheduler.post(query)) {
+      result.setException(new IllegalStateException("The player is closed"));
+    }
+    return result;
   }
 
 
   public @NonNull MediaTask<Integer, PlayerResult> setMediaItem(@NonNull MediaItem item) {
 
-    return mediaTaskWithErrorHandling(() -> {
+    return mediaTaskWithErrorHandling(TaskMetrics.OP_PLAYLIST, () -> {
       exoplayer.setMediaItem(item);
       return CALL_STATUS_NO_ERROR;
-    });
+    }, AWAIT_NOTHING, item).touching(RESOURCE_PLAYLIST | RESOURCE_POSITION);
 
   }
 
 
   public @NonNull MediaTask<Integer, PlayerResult> addPlaylistItem(int index, @NonNull MediaItem item) {
 
-    return mediaTaskWithErrorHandling(() -> {
+    return mediaTaskWithErrorHandling(TaskMetrics.OP_PLAYLIST, () -> {
       exoplayer.addToPlaylist(index, item);
       return CALL_STATUS_NO_ERROR;
-    });
+    }, AWAIT_NOTHING, index, item).touching(RESOURCE_PLAYLIST);
 
   }
 
 
   public @NonNull MediaTask<Integer, PlayerResult> removePlaylistItem(@IntRange(from = 0) int index) {
 
-    return mediaTaskWithErrorHandling(() -> {
+    return mediaTaskWithErrorHandling(TaskMetrics.OP_PLAYLIST, () -> {
       exoplayer.removeFromPlaylist(index);
       return CALL_STATUS_NO_ERROR;
-    });
+    }, AWAIT_NOTHING, index).touching(RESOURCE_PLAYLIST | RESOURCE_POSITION);
 
   }
 
 
   public @NonNull MediaTask<Integer, PlayerResult> replacePlaylistItem(int index, @NonNull MediaItem item) {
 
-    return mediaTaskWithErrorHandling(() -> {
+    return mediaTaskWithErrorHandling(TaskMetrics.OP_PLAYLIST, () -> {
       exoplayer.replacePlaylistItem(index, item);
       return CALL_STATUS_NO_ERROR;
-    });
+    }, AWAIT_NOTHING, index, item).touching(RESOURCE_PLAYLIST | RESOURCE_POSITION);
 
   }
 
   public @NonNull MediaTask<Integer, PlayerResult> movePlaylistItem(int from, int to) {
 
-    return mediaTaskWithErrorHandling(() -> {
+    return mediaTaskWithErrorHandling(TaskMetrics.OP_PLAYLIST, () -> {
       exoplayer.movePlaylistItem(from, to);
       return CALL_STATUS_NO_ERROR;
-    });
+    }, AWAIT_NOTHING, from, to).touching(RESOURCE_PLAYLIST);
 
   }
 
 
   public @NonNull MediaTask<Integer, PlayerResult> skipToPreviousPlaylistItem() {
 
-    return mediaTaskWithErrorHandling(() -> {
+    return mediaTaskWithErrorHandling(TaskMetrics.OP_SKIP, () -> {
       exoplayer.skipBackward();
       return CALL_STATUS_NO_ERROR;
-    });
+    }).touching(RESOURCE_POSITION | RESOURCE_PLAYLIST | RESOURCE_MODES).inLane(LANE_INTERACTIVE);
 
   }
 
 
   public @NonNull MediaTask<Integer, PlayerResult> skipToNextPlaylistItem() {
 
-    return mediaTaskWithErrorHandling(() -> {
+    return mediaTaskWithErrorHandling(TaskMetrics.OP_SKIP, () -> {
       exoplayer.skipForward();
       return CALL_STATUS_NO_ERROR;
-    });
+    }).touching(RESOURCE_POSITION | RESOURCE_PLAYLIST | RESOURCE_MODES).inLane(LANE_INTERACTIVE);
 
   }
 
 
   public @NonNull MediaTask<Integer, PlayerResult> skipToPlaylistItem(@IntRange(from = 0) int index) {
 
-    return mediaTaskWithErrorHandling(() -> {
+    return mediaTaskWithErrorHandling(TaskMetrics.OP_SKIP, () -> {
       exoplayer.skipToIndex(index);
       return CALL_STATUS_NO_ERROR;
-    });
+    }, AWAIT_NOTHING, index).touching(RESOURCE_POSITION | RESOURCE_PLAYLIST).inLane(LANE_INTERACTIVE);
 
   }
 
@@ -512,19 +1288,19 @@ public class TaskCoordinator implements ExoPlayerWrapper.WrapperListener, AutoCl
   public @NonNull MediaTask<Integer, PlayerResult> setRepeatMode(@SessionPlayer.RepeatMode int repeatMode) {
     int mode = (repeatMode == SessionPlayer.REPEAT_MODE_GROUP) ? 2 : repeatMode;
 
-    return mediaTaskWithErrorHandling(() -> {
+    return mediaTaskWithErrorHandling(TaskMetrics.OP_MODES, () -> {
       exoplayer.setRepeatMode(mode);
       return CALL_STATUS_NO_ERROR;
-    });
+    }, AWAIT_NOTHING, mode).touching(RESOURCE_MODES);
 
   }
 
   public @NonNull MediaTask<Integer, PlayerResult> setShuffleMode(boolean enable) {
 
-    return mediaTaskWithErrorHandling(() -> {
+    return mediaTaskWithErrorHandling(TaskMetrics.OP_MODES, () -> {
       exoplayer.setShuffleMode(enable);
       return CALL_STATUS_NO_ERROR;
-    });
+    }, AWAIT_NOTHING, enable).touching(RESOURCE_MODES);
 
   }
 
@@ -545,68 +1321,53 @@ public class TaskCoordinator implements ExoPlayerWrapper.WrapperListener, AutoCl
 
   public @NonNull MediaTask<Integer, PlayerResult> setVolume(float volume) {
 
-    return mediaTaskWithErrorHandling(() -> {
+    return mediaTaskWithErrorHandling(TaskMetrics.OP_VOLUME, () -> {
       exoplayer.setVolume(volume);
       return CALL_STATUS_NO_ERROR;
-    });
+    }, AWAIT_NOTHING, volume).touching(RESOURCE_VOLUME).coalescing(COALESCE_VOLUME);
 
   }
 
   public float getVolume() {
-    return processNowAndWaitForResult(() -> {
-      Log.d("testing", "GETTING VOLUME");
-      return exoplayer.getVolume();
-    });
+    return exoplayer.getSnapshot().volume;
   }
 
 
   @Override
   public void close() {
-    reset();
-
-    HandlerThread hthread;
-    synchronized (lockForExoHandler) {
-      hthread = exoHandlerThread;
-      if (hthread != null) {
-        exoHandlerThread = null;
-
-        exoHandler.removeCallbacks(tokenForBufferPolling);
-
-        SettableFuture<Boolean> future = SettableFuture.create();
-        exoHandler.post(() -> {
-          exoplayer.close();
-          future.set(true);
-        });
-        getPlayerFuture(future);
-
-        hthread.quit();
-      }
+    ListenableFuture<Void> closed = closeAsync();
+    if (!exoScheduler.isCurrentThread()) { // waiting on our own looper would never return
+      getPlayerFuture(closed);
     }
+  }
 
-    synchronized (lockForTaskHandler) {
-      hthread = taskHandlerThread;
-      if (hthread == null) return;
-      taskHandlerThread = null;
-      hthread.quit();
-    }
+  /**
+   * Cancels every task and releases the exoplayer without blocking the caller. Unlike reset, the
+   * exoplayer isn't rebuilt first. Once it's done the threads are stopped, and calling it again
+   * just returns the same future.
+   * @return Future that completes once everything has been released
+   */
+  public ListenableFuture<Void> closeAsync() {
+    SettableFuture<Void> closed = SettableFuture.create();
+    if (!closing.compareAndSet(null, closed)) return closing.get();
+
+    teardown(closed, () -> {
+      LooperWatchdog w = watchdog;
+      if (w != null) w.stop();
+      exoScheduler.remove(tokenForBufferPolling);
+      exoplayer.close();
+      exoScheduler.quit();
+      if (taskScheduler != exoScheduler) taskScheduler.quit();
+      closed.set(null);
+    });
+    return closed;
   }
 
   // ExoWrapper.WrapperListener Implementation
 
   @Override
-  public void onPrepared(MediaItem mediaItem) {
-    synchronized (lockForTaskQ) {
-      if (currentTask != null
-        && ObjectsCompat.equals(currentTask.mediaItem, mediaItem)
-        && currentTask.isWaiting()) {
-
-        synchronized (lockForOverride) {
-          overrideStatus = CALL_STATUS_NO_ERROR;
-        }
-        currentTask.sendCompleteNotification();
-
-      }
-    }
+  public void onPrepared(int prepareId) {
+    resolveAwaiting(awaitingPrepared, prepareId, CALL_STATUS_NO_ERROR);
   }
 
 
@@ -614,7 +1375,7 @@ public class TaskCoordinator implements ExoPlayerWrapper.WrapperListener, AutoCl
   public void onTrackChanged(MediaItem item, int index) {
     //TODO: postAtFrontOfQueue is used to ensure track changes are observed quickly,
     // but it should be checked that this doesn't have unintended side-effects
-    taskHandler.postAtFrontOfQueue(() -> bufferListener.onTrackChanged(item, index));
+    taskScheduler.postAtFront(() -> bufferListener.onTrackChanged(item, index));
   }
 
 
@@ -622,7 +1383,9 @@ public class TaskCoordinator implements ExoPlayerWrapper.WrapperListener, AutoCl
   public void onStartBufferPolling() {
     if (!isPolling) {
       isPolling = true;
-      exoHandler.post(tokenForBufferPolling);
+      pollInterval = POLL_BUFFER_MIN_INTERVAL_MS;
+      lastPolledPercent = -1;
+      exoScheduler.post(tokenForBufferPolling);
     }
   }
 
@@ -631,7 +1394,7 @@ public class TaskCoordinator implements ExoPlayerWrapper.WrapperListener, AutoCl
   public  void onStopBufferPolling() {
     if (isPolling) {
       isPolling = false;
-      exoHandler.removeCallbacks(tokenForBufferPolling);
+      exoScheduler.remove(tokenForBufferPolling);
     }
   }
 
@@ -656,88 +1419,171 @@ public class TaskCoordinator implements ExoPlayerWrapper.WrapperListener, AutoCl
 
 
   @Override
-  public void onSeekCompleted() {
-    synchronized (lockForTaskQ) {
-      if (currentTask != null
-        && currentTask.isWaiting()) {
-        synchronized (lockForOverride) {
-          overrideStatus = CALL_STATUS_NO_ERROR;
-        }
-        currentTask.sendCompleteNotification();
-      }
-    }
+  public void onSeekCompleted(int seekId) {
+    resolveAwaiting(awaitingSeek, seekId, CALL_STATUS_NO_ERROR);
   }
 
 
   @Override
   public void onError(MediaItem mediaItem, int error) {
-    synchronized (lockForTaskQ) {
-      if (currentTask != null
-        && currentTask.isWaiting()) {
-        synchronized (lockForOverride) {
-          overrideStatus = CALL_STATUS_ERROR_UNKNOWN;
-        }
-        currentTask.sendCompleteNotification();
-      }
-    }
+    // nothing that is waiting can complete normally now
+    resolveAwaiting(awaitingPrepared, Integer.MAX_VALUE, CALL_STATUS_ERROR_UNKNOWN);
+    resolveAwaiting(awaitingSeek, Integer.MAX_VALUE, CALL_STATUS_ERROR_UNKNOWN);
 
     bufferListener.onError(mediaItem, error);
   }
 
   public class MediaPlayerTask implements Runnable {
 
+    // Lifecycle - a task moves forward through these states exactly once
+    private static final int STATE_QUEUED = 0;
+    private static final int STATE_RUNNING = 1;
+    private static final int STATE_FINISHED = 2;
+    private static final int STATE_CANCELLED = 3;
+
     final SettableFuture<SessionPlayer.PlayerResult> future;
-    private MediaItem mediaItem;
-    @GuardedBy("this")
-    boolean taskComplete;
+    final @CoalesceKey int coalesceKey;
+    final @Resource int resources;
+    final @Lane int lane;
+    final long queuedAt; // System.nanoTime()
+    final Scheduler scheduler; // the thread that steps through the instructions
+    private final AtomicInteger state;
+    private volatile MediaItem mediaItem;
 
     private final MediaTask<Integer, PlayerResult> instructions;
-    private Eval<Integer, SessionPlayer.PlayerResult> procedure;
+    private volatile Eval<Integer, SessionPlayer.PlayerResult> procedure;
+
+    // Only touched on the scheduler's thread
+    private boolean isStepping;
+    private int inlineCompletions;
+    private boolean hasStartedInstructions;
 
-    MediaPlayerTask(MediaTask<Integer, PlayerResult> instructions) {
+    MediaPlayerTask(MediaTask<Integer, PlayerResult> instructions, boolean onExoThread) {
       this.future = SettableFuture.create();
+      this.coalesceKey = instructions.getCoalesceKey();
+      this.resources = instructions.getResources();
+      this.lane = instructions.getLane();
+      this.queuedAt = System.nanoTime();
+      this.scheduler = onExoThread ? exoScheduler : taskScheduler;
+      this.state = new AtomicInteger(STATE_QUEUED);
       this.instructions = instructions;
-      this.taskComplete = false;
-    }
-
-    public boolean isWaiting() {
-      return this.procedure != null && !this.procedure.isNow();
     }
 
     @Override
     public void run() {
-      procedure = this.instructions.run();
-      mediaItem = exoplayer.getCurrentMediaItem();
-
-      if (procedure.isNow()) {
-        finish(procedure.run());
+      if (!leaveQueue(STATE_RUNNING)) { // dropped or cancelled after it was taken off the queue
+        retireAndProcess(this);
+        return;
       }
 
-      synchronized (this) {
-        taskComplete = true;
-        notifyAll();
+      Tracer t = tracer;
+      t.beginSection(TRACE_TASK_STEP);
+      try {
+        isStepping = true;
+        steppingTask.set(this);
+        procedure = this.instructions.run();
+        mediaItem = exoplayer.getCurrentMediaItem();
+        settle();
+      } finally {
+        t.endSection();
       }
     }
 
     void sendCompleteNotification() {
-      taskHandler.post(() -> { // sendCompleteNotification is called from exo thread, move back on to task thread
-        procedure = procedure.step(); // execute next instruction
-        mediaItem = exoplayer.getCurrentMediaItem(); // instruction may change mediaItem
-        if (procedure.isNow()) { // Have reached the end
-          finish(procedure.run());
+      if (scheduler.isCurrentThread() && isStepping) {
+        inlineCompletions++; // the instruction ran inline, settle will pick it up
+        return;
+      }
+
+      Runnable step = () -> { // sendCompleteNotification is usually called from exo thread, move back on to the task's thread
+        if (state.get() != STATE_RUNNING) return; // cancelled, don't run any more instructions
+
+        Tracer t = tracer;
+        t.beginSection(TRACE_TASK_STEP);
+        try {
+          isStepping = true;
+          steppingTask.set(this);
+          procedure = procedure.step(); // execute next instruction
+          mediaItem = exoplayer.getCurrentMediaItem(); // instruction may change mediaItem
+          settle();
+        } finally {
+          t.endSection();
         }
-      });
+      };
+
+      if (lane == LANE_INTERACTIVE) {
+        scheduler.postAtFront(step);
+      } else {
+        scheduler.post(step);
+      }
+    }
+
+    /**
+     * Keeps stepping while instructions complete inline, then finishes the task if the end has been
+     * reached. Otherwise the task waits for the next sendCompleteNotification.
+     */
+    private void settle() {
+      while (inlineCompletions > 0 && !procedure.isNow()) {
+        inlineCompletions--;
+        procedure = procedure.step();
+        mediaItem = exoplayer.getCurrentMediaItem();
+      }
+      inlineCompletions = 0;
+      isStepping = false;
+      steppingTask.remove();
+
+      if (procedure.isNow()) { // Have reached the end
+        finish(procedure.run());
+      }
+    }
+
+    /**
+     * Completes the future without running any instructions, used when a newer task supersedes this
+     * one before it has started, or when there is no room for it in the queue.
+     * @param status CALL_STATUS_SKIPPED or CALL_STATUS_REJECTED
+     * @return False if the task had already started, finished or been cancelled
+     */
+    boolean skip(@CallStatus int status) {
+      if (!leaveQueue(STATE_FINISHED)) return false;
+      int st = bufferListener.convertStatus(status);
+      future.set(new PlayerResult(st, exoplayer.getCurrentMediaItem()));
+      return true;
+    }
+
+    boolean isWaiting() {
+      return state.get() == STATE_QUEUED;
+    }
+
+    private boolean leaveQueue(int newState) {
+      if (!state.compareAndSet(STATE_QUEUED, newState)) return false;
+      waitingCount.decrementAndGet();
+      return true;
+    }
+
+    /**
+     * Cancels the future, whether or not the task has started. A running task stops at its next step.
+     */
+    void cancel() {
+      if (leaveQueue(STATE_CANCELLED) || state.compareAndSet(STATE_RUNNING, STATE_CANCELLED)) {
+        future.cancel(true);
+      }
     }
 
     private void finish(Either<Integer, PlayerResult> result) {
-      if (result.isGood()) {
-        future.set(result.getValue());
-      } else {
-        int st = bufferListener.convertStatus(result.getErrorValue());
-        PlayerResult er = new PlayerResult(st, mediaItem);
-        future.set(er);
+      if (state.compareAndSet(STATE_RUNNING, STATE_FINISHED)) {
+        if (result.isGood()) {
+          future.set(result.getValue());
+        } else {
+          int st = bufferListener.convertStatus(result.getErrorValue());
+          PlayerResult er = new PlayerResult(st, mediaItem);
+          future.set(er);
+        }
       }
-      clearCurrentAndProcess();
+      retireAndProcess(this);
+
+      TaskMetrics.Listener listener = metricsListener;
+      TaskMetrics m = metrics;
+      if (listener != null && m != null) listener.onTaskFinished(m);
     }
 
   }
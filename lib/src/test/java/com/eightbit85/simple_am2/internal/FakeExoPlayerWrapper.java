@@ -0,0 +1,309 @@
+package com.eightbit85.simple_am2.internal;
+
+import android.content.Context;
+
+import androidx.media.AudioAttributesCompat;
+import androidx.media2.common.MediaItem;
+
+import com.eightbit85.simple_am2.PlayerSnapshot;
+import com.google.android.exoplayer2.PlaybackParameters;
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Scripted stand in for the exoplayer, for the simulation tests. Keeps just enough state for the
+ * coordinator, and answers prepares and seeks on the exo scheduler after a set delay. A delay of
+ * NEVER drops the callback, as if exo had lost it. Buffering can be scripted with bufferAfter.
+ */
+class FakeExoPlayerWrapper extends ExoPlayerWrapper {
+
+  static final long NEVER = -1L;
+
+  private final Scheduler exoScheduler;
+  private final WrapperListener listener;
+
+  // Script
+  long prepareDelayMs = 50L;
+  long seekDelayMs = 10L;
+  long durationMs = 180_000L;
+
+  // Every instruction exo was given, in order
+  final List<String> calls = new ArrayList<>();
+
+  private final ArrayList<MediaItem> playlist = new ArrayList<>();
+  private int index;
+  private boolean isPlaying;
+  private long position;
+  private float volume;
+  private int repeatMode;
+  private boolean isShuffled;
+  private AudioAttributesCompat audioAttributes;
+  private int bufferedPercent;
+  private int prepareRequests;
+  private int seekRequests;
+  private PlayerSnapshot snapshot = PlayerSnapshot.EMPTY;
+
+  FakeExoPlayerWrapper(Context context, Scheduler exoScheduler, WrapperListener listener) {
+    super(context, null, listener);
+    this.exoScheduler = exoScheduler;
+    this.listener = listener;
+  }
+
+  /**
+   * Sets the buffered percentage after a delay, as if a load had finished. 0 starts buffering and
+   * the coordinator's polling, 100 reports the item as buffered.
+   */
+  void bufferAfter(long delayMs, int percent) {
+    exoScheduler.postDelayed(() -> {
+      bufferedPercent = percent;
+      MediaItem item = getCurrentMediaItem();
+      if (percent == 0) {
+        listener.onBufferingStarted(item);
+        listener.onStartBufferPolling();
+      } else if (percent >= 100) {
+        listener.onBuffered(item);
+      }
+    }, delayMs);
+  }
+
+  private void answer(long delayMs, Runnable callback) {
+    if (delayMs != NEVER) exoScheduler.postDelayed(callback, delayMs);
+  }
+
+  private void seeked() {
+    seekRequests++;
+    answer(seekDelayMs, () -> listener.onSeekCompleted(seekRequests)); // like exo, reports every seek handled so far
+  }
+
+  // Class related
+
+  @Override
+  public void reset() {
+    calls.add("reset");
+    playlist.clear();
+    index = -1;
+    isPlaying = false;
+    position = 0L;
+    volume = 1f;
+    repeatMode = 0;
+    isShuffled = false;
+    audioAttributes = null;
+    bufferedPercent = 100;
+    publishState();
+  }
+
+  @Override
+  public void close() {
+    calls.add("close");
+    snapshot = PlayerSnapshot.EMPTY;
+  }
+
+  // State related
+
+  @Override
+  void publishState() {
+    snapshot = new PlayerSnapshot(position, position, durationMs, 1f, volume, audioAttributes, isPlaying, durationMs, exoScheduler.uptimeMillis());
+  }
+
+  @Override
+  void publishStateIfChanged() {
+    PlayerSnapshot last = snapshot;
+    if (position != last.position || volume != last.volume || audioAttributes != last.audioAttributes || isPlaying != last.isPlaying) {
+      publishState();
+    }
+  }
+
+  @Override
+  public PlayerSnapshot getSnapshot() {
+    return snapshot;
+  }
+
+  @Override
+  public void setAudioAttributes(AudioAttributesCompat audioAttributes) {
+    calls.add("attributes");
+    this.audioAttributes = audioAttributes;
+  }
+
+  @Override
+  public AudioAttributesCompat getAudioAttributes() {
+    return audioAttributes;
+  }
+
+  @Override
+  public void prepare() {
+    calls.add("prepare");
+    prepareRequests++;
+    int id = prepareRequests;
+    answer(prepareDelayMs, () -> listener.onPrepared(id));
+  }
+
+  @Override
+  int getLastPrepareId() {
+    return prepareRequests;
+  }
+
+  @Override
+  int updateBuffering() {
+    publishState();
+    return bufferedPercent;
+  }
+
+  // Playlist related
+
+  @Override
+  public void setMediaItem(MediaItem mediaItem) {
+    calls.add("setMediaItem");
+    playlist.clear();
+    playlist.add(mediaItem);
+    index = 0;
+  }
+
+  @Override
+  public MediaItem getCurrentMediaItem() {
+    return (index >= 0 && index < playlist.size()) ? playlist.get(index) : null;
+  }
+
+  @Override
+  public void setPlaylist(List<MediaItem> items) {
+    calls.add("setPlaylist");
+    playlist.clear();
+    playlist.addAll(items);
+    index = playlist.isEmpty() ? -1 : 0;
+  }
+
+  @Override
+  public List<MediaItem> getPlaylist() {
+    return playlist.isEmpty() ? null : new ArrayList<>(playlist);
+  }
+
+  @Override
+  public void addToPlaylist(int index, MediaItem item) {
+    calls.add("add");
+    playlist.add(index, item);
+  }
+
+  @Override
+  public void removeFromPlaylist(int index) {
+    calls.add("remove");
+    playlist.remove(index);
+    if (this.index >= playlist.size()) this.index = playlist.size() - 1;
+  }
+
+  @Override
+  public void replacePlaylistItem(int index, MediaItem item) {
+    calls.add("replace");
+    playlist.set(index, item);
+  }
+
+  @Override
+  public void movePlaylistItem(int from, int to) {
+    calls.add("move");
+    playlist.add(to, playlist.remove(from));
+  }
+
+  // Playback related
+
+  @Override
+  public void play() {
+    calls.add("play");
+    isPlaying = true;
+  }
+
+  @Override
+  public void pause() {
+    calls.add("pause");
+    isPlaying = false;
+  }
+
+  @Override
+  public void skipForward() {
+    calls.add("skipForward");
+    if (index + 1 < playlist.size()) {
+      index++;
+      position = 0L;
+      seeked();
+    }
+  }
+
+  @Override
+  public void skipBackward() {
+    calls.add("skipBackward");
+    index = Math.max(0, index - 1);
+    position = 0L;
+    seeked();
+  }
+
+  @Override
+  public void skipToIndex(int index) {
+    calls.add("skipTo");
+    Preconditions.checkElementIndex(index, playlist.size());
+    this.index = index;
+    position = 0L;
+    seeked();
+  }
+
+  @Override
+  public void setRepeatMode(int repeatMode) {
+    calls.add("repeat");
+    this.repeatMode = repeatMode;
+  }
+
+  @Override
+  public int getRepeatMode() {
+    return repeatMode;
+  }
+
+  @Override
+  public void seekTo(long position) {
+    calls.add("seek");
+    this.position = position;
+    seeked();
+  }
+
+  @Override
+  int getLastSeekId() {
+    return seekRequests;
+  }
+
+  @Override
+  public void setShuffleMode(boolean enabled) {
+    calls.add("shuffle");
+    isShuffled = enabled;
+  }
+
+  // Info related
+
+  @Override
+  public long getCurrentPosition() {
+    return position;
+  }
+
+  @Override
+  public long getBufferedPosition() {
+    return position;
+  }
+
+  @Override
+  public long getDuration() {
+    return durationMs;
+  }
+
+  @Override
+  public PlaybackParameters getPlaybackParams() {
+    return PlaybackParameters.DEFAULT;
+  }
+
+  @Override
+  public void setVolume(float volume) {
+    calls.add("volume");
+    this.volume = volume;
+  }
+
+  @Override
+  public float getVolume() {
+    return volume;
+  }
+
+}
@@ -1,13 +1,21 @@
-package com.eightbit85.simple_am2.Monads;
+package com.eightbit85.simple_am2.internal;
 
-import com.eightbit85.simple_am2.internal.MediaTask;
+import com.eightbit85.simple_am2.Monads.Bad;
+import com.eightbit85.simple_am2.Monads.Eval;
+import com.eightbit85.simple_am2.Monads.Good;
+import com.eightbit85.simple_am2.Monads.Later;
+import com.eightbit85.simple_am2.Monads.Now;
+import com.eightbit85.simple_am2.Monads.Stepper;
 
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class MediaTaskTests {
@@ -215,5 +223,124 @@ public class MediaTaskTests {
 
   }
 
+  private static MediaTask<Exception, Integer> addOne(int i) {
+    return new MediaTask<>(() -> i % 2 == 0 ? new Later<>(() -> new Good<>(i + 1)) : new Now<>(new Good<>(i + 1)));
+  }
+
+  private static MediaTask<Exception, Integer> addFrom(int i, int n) {
+    return i == n ? MediaTask.pure(i) : addOne(i).flatMap(j -> addFrom(j, n));
+  }
+
+  @Test
+  public void long_chains_are_stack_safe() {
+    int n = 100_000;
+    MediaTask<Exception, Integer> sequence = MediaTask.pure(0);
+    for (int i = 0; i < n; i++) sequence = sequence.flatMap(MediaTaskTests::addOne);
+
+    Eval<Exception, Integer> ev = sequence.run();
+    int steps = 0;
+    while (!ev.isNow()) {
+      ev = ev.step();
+      steps++;
+    }
+    assertEquals(n, (int) ev.run().getValue());
+    assertEquals(n / 2, steps); // one per Later
+    assertEquals(n, (int) sequence.run().run().getValue());
+
+    assertEquals(n, (int) addFrom(0, n).run().run().getValue());
+  }
+
+  @Test
+  public void failures_are_shared_not_copied() {
+    Eval<Integer, Integer> failed = new Now<>(TaskCoordinator.failure(TaskCoordinator.CALL_STATUS_ERROR_IO));
+    assertSame(failed, failed.flatMap(i -> Eval.pure("unreached")));
+    assertSame(failed.run(), failed.run().map(i -> "unreached"));
+    assertSame(TaskCoordinator.failure(TaskCoordinator.CALL_STATUS_ERROR_IO), TaskCoordinator.failure(TaskCoordinator.CALL_STATUS_ERROR_IO));
+    assertSame(TaskCoordinator.failure(TaskCoordinator.CALL_STATUS_ERROR_UNKNOWN), TaskCoordinator.failure(TaskCoordinator.CALL_STATUS_ERROR_UNKNOWN));
+  }
+
+  @Test
+  public void maps_and_foreaches_run_in_order_once_complete() {
+    StringBuilder seen = new StringBuilder();
+    MediaTask<Exception, Integer> mt = new MediaTask<Exception, Integer>(() -> new Later<>(() -> new Good<>(2)))
+      .map(i -> i * 10)
+      .foreach(i -> seen.append(i))
+      .map(i -> i + 1)
+      .foreach(i -> seen.append(",").append(i))
+      .coalescing(TaskCoordinator.COALESCE_VOLUME);
+
+    Eval<Exception, Integer> ev = mt.run();
+    assertTrue(ev.isLater());
+    assertEquals("", seen.toString());
+    assertEquals(TaskCoordinator.COALESCE_VOLUME, mt.getCoalesceKey());
+
+    Eval<Exception, Integer> ev2 = ev.step();
+    assertEquals(21, (int) ev2.run().getValue());
+    assertEquals("20,21", seen.toString());
+
+    MediaTask<Exception, Integer> failed = new MediaTask<Exception, Integer>(() -> new Now<>(new Bad<>(new IllegalStateException())))
+      .foreach(i -> seen.append("unreached"));
+    assertFalse(failed.run().run().isGood());
+    assertEquals("20,21", seen.toString());
+  }
+
+  @Test
+  public void zip_steps_whichever_branch_is_ready() {
+    AtomicReference<String> ready = new AtomicReference<>("none");
+    MediaTask<Exception, Integer> slow = new MediaTask<>(() -> new Later<>(() -> new Good<>(2), () -> ready.get().contains("slow")));
+    MediaTask<Exception, String> fast = new MediaTask<Exception, String>(() -> new Later<>(() -> new Good<>("hello"), () -> ready.get().contains("fast")))
+      .flatMap(s -> new MediaTask<>(() -> new Now<>(new Good<>(s + " world"))));
+
+    Eval<Exception, String> ev = slow.zip(fast, (i, s) -> s + " " + i).run();
+    assertFalse(ev.isNow());
+    assertFalse(ev.isReady());
+
+    ready.set("fast");
+    Eval<Exception, String> ev2 = ev.step();
+    assertFalse(ev2.isNow());
+    assertFalse(ev2.isReady()); // only the slow branch is left
+
+    ready.set("fast slow");
+    Eval<Exception, String> ev3 = ev2.step();
+    assertTrue(ev3.isNow());
+    assertEquals("hello world 2", ev3.run().getValue());
+
+    Eval<Exception, List<Integer>> failed = MediaTask.all(Arrays.asList(
+      slow, new MediaTask<Exception, Integer>(() -> new Now<>(new Bad<>(new IllegalStateException())))))
+      .run();
+    assertTrue(failed.isNow()); // a failed branch fails the lot without waiting on the others
+    assertFalse(failed.run().isGood());
+  }
+
+  @Test
+  public void zip_waits_for_a_mapped_branch_to_fail() {
+    AtomicReference<String> ready = new AtomicReference<>("none");
+    AtomicReference<Integer> status = new AtomicReference<>(0);
+    MediaTask<Integer, Integer> failing = new MediaTask<Integer, Integer>(() -> new Later<>(
+      () -> status.get() == 0 ? new Good<>(2) : new Bad<>(status.get()), () -> ready.get().contains("failing")))
+      .map(i -> i * 10);
+    MediaTask<Integer, String> fine = new MediaTask<Integer, String>(() -> new Later<>(() -> new Good<>("hello"), () -> ready.get().contains("fine")))
+      .foreach(s -> { });
+
+    Eval<Integer, String> ev = failing.zip(fine, (i, s) -> s + " " + i).run();
+    assertFalse(ev.isReady());
+
+    ready.set("fine");
+    Eval<Integer, String> ev2 = ev.step();
+    assertFalse(ev2.isNow());
+    assertFalse(ev2.isReady()); // the mapped branch still waits on its own readiness
+
+    status.set(6);
+    ready.set("fine failing");
+    Eval<Integer, String> ev3 = ev2.step();
+    assertTrue(ev3.isNow());
+    assertFalse(ev3.run().isGood());
+    assertEquals(6, (int) ev3.run().getErrorValue());
+
+    ready.set("none");
+    status.set(0);
+    Eval<Integer, List<Integer>> all = MediaTask.all(Arrays.asList(failing, failing.foreach(i -> { }))).run();
+    assertFalse(all.isReady());
+  }
 
 }
@@ -0,0 +1,360 @@
+package com.eightbit85.simple_am2.internal;
+
+import android.content.Context;
+import android.os.Looper;
+
+import androidx.media2.common.MediaItem;
+import androidx.media2.common.SessionPlayer;
+import androidx.media2.common.SessionPlayer.PlayerResult;
+
+import com.eightbit85.simple_am2.PlayerSnapshot;
+import com.eightbit85.simple_am2.SimpleAudioPlayer;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Runs the coordinator against a FakeExoPlayerWrapper on a VirtualClock, so timings are exact and
+ * runs repeat exactly, with no device and no real threads.
+ */
+public class TaskCoordinatorSimTest {
+
+  private final Context context = mock(Context.class);
+  private final MediaItem item1 = mock(MediaItem.class);
+  private final MediaItem item2 = mock(MediaItem.class);
+
+  private VirtualClock clock;
+  private Scheduler taskScheduler;
+  private Scheduler exoScheduler;
+  private ExoWrapperFactory factory;
+  private FakeExoPlayerWrapper fake;
+  private TaskCoordinator coord;
+
+  private final TaskCoordinator.BufferListener listener = new TaskCoordinator.BufferListener() {
+    @Override
+    public void setBufferingState(MediaItem item, int state) {}
+
+    @Override
+    public void onTrackChanged(MediaItem item, int index) {}
+
+    @Override
+    public void onError(MediaItem item, int error) {}
+
+    @Override
+    public int convertStatus(int status) {
+      if (status == TaskCoordinator.CALL_STATUS_NO_ERROR) return PlayerResult.RESULT_SUCCESS;
+      if (status == TaskCoordinator.CALL_STATUS_SKIPPED) return PlayerResult.RESULT_INFO_SKIPPED;
+      if (status == TaskCoordinator.CALL_STATUS_TIMED_OUT) return PlayerResult.RESULT_ERROR_IO;
+      if (status == TaskCoordinator.CALL_STATUS_REJECTED) return PlayerResult.RESULT_ERROR_INVALID_STATE;
+      return PlayerResult.RESULT_ERROR_UNKNOWN;
+    }
+  };
+
+  private void start() {
+    startClock();
+    clock.inline(() -> coord = new TaskCoordinator(context, listener, factory, taskScheduler, exoScheduler));
+  }
+
+  private SimpleAudioPlayer startPlayer() {
+    startClock();
+    SimpleAudioPlayer[] player = new SimpleAudioPlayer[1];
+    clock.inline(() -> player[0] = new SimpleAudioPlayer(l -> new TaskCoordinator(context, l, factory, taskScheduler, exoScheduler)));
+    return player[0];
+  }
+
+  private void startClock() {
+    clock = new VirtualClock();
+    taskScheduler = clock.newScheduler("task");
+    exoScheduler = clock.newScheduler("exo");
+    factory = new ExoWrapperFactory() {
+      @Override
+      ExoPlayerWrapper getWrapper(Context context, Looper looper, ExoPlayerWrapper.WrapperListener listener) {
+        fake = new FakeExoPlayerWrapper(context, exoScheduler, listener);
+        return fake;
+      }
+    };
+  }
+
+  private static int resultOf(ListenableFuture<PlayerResult> future) throws ExecutionException, InterruptedException {
+    assertTrue(future.isDone());
+    return future.get().getResultCode();
+  }
+
+  @Test
+  public void test_prepare_completes_on_callback() throws ExecutionException, InterruptedException {
+    start();
+    fake.prepareDelayMs = 200L;
+    ListenableFuture<PlayerResult> prepared = coord.submit(coord.setMediaItem(item1).flatMap(r -> coord.prepare()));
+
+    clock.advanceBy(199L);
+    assertFalse(prepared.isDone());
+
+    clock.advanceBy(1L);
+    assertEquals(PlayerResult.RESULT_SUCCESS, resultOf(prepared));
+    assertEquals(Arrays.asList("reset", "setMediaItem", "prepare"), fake.calls);
+  }
+
+  @Test
+  public void test_lost_callback_times_out() throws ExecutionException, InterruptedException {
+    start();
+    coord.setCallbackTimeouts(1000L, 1000L);
+    fake.prepareDelayMs = FakeExoPlayerWrapper.NEVER;
+    ListenableFuture<PlayerResult> prepared = coord.submit(coord.setMediaItem(item1).flatMap(r -> coord.prepare()));
+    ListenableFuture<PlayerResult> played = coord.submit(coord.play());
+
+    clock.advanceBy(999L);
+    assertFalse(prepared.isDone());
+    assertFalse(played.isDone()); // behind the prepare, both touch the transport
+
+    clock.runUntilIdle();
+    assertEquals(1000L, clock.now());
+    assertEquals(PlayerResult.RESULT_ERROR_IO, resultOf(prepared));
+    assertEquals(PlayerResult.RESULT_SUCCESS, resultOf(played));
+    assertEquals(1, coord.getStallCount());
+  }
+
+  @Test
+  public void test_timed_out_instruction_stops_waiting() throws ExecutionException, InterruptedException {
+    start();
+    coord.setCallbackTimeouts(1000L, 1000L);
+    fake.seekDelayMs = FakeExoPlayerWrapper.NEVER;
+    coord.submit(coord.setMediaItem(item1));
+    ListenableFuture<PlayerResult> seeked = coord.submit(coord.seekTo(1000L));
+
+    clock.advanceBy(999L);
+    clock.inline(() -> assertEquals(1, coord.getAwaitingCount()));
+
+    clock.runUntilIdle();
+    assertEquals(PlayerResult.RESULT_ERROR_IO, resultOf(seeked));
+    clock.inline(() -> assertEquals(0, coord.getAwaitingCount()));
+  }
+
+  @Test
+  public void test_buffering_polls_back_off() {
+    start();
+    coord.submit(coord.setMediaItem(item1));
+    fake.bufferAfter(0L, 0);
+    clock.advanceBy(10_000L);
+
+    long polls = clock.getEventsRun();
+    clock.advanceBy(10_000L);
+    assertTrue(clock.getEventsRun() - polls <= 2); // backed off to the longest interval
+
+    fake.bufferAfter(0L, 100);
+    clock.runUntilIdle(); // polling stops once fully buffered
+  }
+
+  @Test
+  public void test_full_queue_overflow_policies() throws ExecutionException, InterruptedException {
+    int[] policies = {TaskCoordinator.OVERFLOW_REJECT, TaskCoordinator.OVERFLOW_DROP_OLDEST, TaskCoordinator.OVERFLOW_COALESCE};
+    String[][] expected = {
+      {"play", "volume"}, // the second volume is turned away, play is interactive so goes first
+      {"play", "volume"}, // the first volume makes room
+      {"play", "volume"}}; // the first volume is superseded by the second
+
+    for (int i = 0; i < policies.length; i++) {
+      start();
+      coord.setQueueCapacity(2, policies[i]);
+      ListenableFuture<PlayerResult> volume1 = coord.submit(coord.setVolume(0.5f));
+      ListenableFuture<PlayerResult> play = coord.submit(coord.play());
+      ListenableFuture<PlayerResult> volume2 = coord.submit(coord.setVolume(1f));
+      assertTrue(volume1.isDone() || volume2.isDone()); // settled before the task thread has run at all
+      clock.runUntilIdle();
+
+      boolean isNewRejected = policies[i] == TaskCoordinator.OVERFLOW_REJECT;
+      int droppedResult = policies[i] == TaskCoordinator.OVERFLOW_COALESCE
+        ? PlayerResult.RESULT_INFO_SKIPPED : PlayerResult.RESULT_ERROR_INVALID_STATE; // only superseded is a skip
+      assertEquals(PlayerResult.RESULT_SUCCESS, resultOf(play));
+      assertEquals(isNewRejected ? PlayerResult.RESULT_SUCCESS : droppedResult, resultOf(volume1));
+      assertEquals(isNewRejected ? PlayerResult.RESULT_ERROR_INVALID_STATE : PlayerResult.RESULT_SUCCESS, resultOf(volume2));
+      assertEquals(isNewRejected ? 1 : 0, coord.getRejectedTaskCount());
+      assertEquals(isNewRejected ? 0 : 1, coord.getDroppedTaskCount());
+      assertEquals(Arrays.asList(expected[i]), fake.calls.subList(1, fake.calls.size()));
+    }
+  }
+
+  @Test
+  public void test_coalesce_policy_only_drops_what_is_superseded() throws ExecutionException, InterruptedException {
+    start();
+    coord.setQueueCapacity(2, TaskCoordinator.OVERFLOW_COALESCE);
+    coord.submit(coord.setPlaylist(Arrays.asList(item1, item2)));
+    ListenableFuture<PlayerResult> removed = coord.submit(coord.removePlaylistItem(1));
+    ListenableFuture<PlayerResult> added = coord.submit(coord.addPlaylistItem(0, item2)); // same resources, but no key
+    clock.runUntilIdle();
+
+    assertEquals(PlayerResult.RESULT_SUCCESS, resultOf(removed));
+    assertEquals(PlayerResult.RESULT_ERROR_INVALID_STATE, resultOf(added));
+    assertEquals(1, coord.getRejectedTaskCount());
+    assertEquals(0, coord.getDroppedTaskCount());
+  }
+
+  @Test
+  public void test_interactive_instructions_keep_their_order() {
+    start();
+    coord.submit(coord.setPlaylist(Arrays.asList(item1, item2)));
+    clock.runUntilIdle();
+
+    coord.submit(coord.setRepeatMode(SessionPlayer.REPEAT_MODE_ALL)); // normal, so overtaken by the others
+    coord.submit(coord.pause());
+    coord.submit(coord.skipToPlaylistItem(1)); // shares nothing with the pause, starts in the same drain
+    clock.runUntilIdle();
+
+    assertEquals(Arrays.asList("pause", "skipTo", "repeat"), fake.calls.subList(2, fake.calls.size()));
+  }
+
+  @Test
+  public void test_play_asks_permission_as_it_runs() throws ExecutionException, InterruptedException {
+    start();
+    boolean[] isAsked = {false};
+    MediaTask<Integer, PlayerResult> play = coord.play(() -> {
+      isAsked[0] = true;
+      return false;
+    });
+    assertFalse(isAsked[0]); // building the task asks nothing
+
+    ListenableFuture<PlayerResult> played = coord.submit(play);
+    clock.runUntilIdle();
+    assertTrue(isAsked[0]);
+    assertEquals(PlayerResult.RESULT_ERROR_UNKNOWN, resultOf(played)); // permission denied
+    assertEquals(Arrays.asList("reset"), fake.calls);
+  }
+
+  @Test
+  public void test_snapshot_published_only_on_change() throws ExecutionException, InterruptedException {
+    start();
+    coord.submit(coord.setVolume(0.5f));
+    clock.runUntilIdle();
+    PlayerSnapshot changed = fake.getSnapshot();
+    assertEquals(0.5f, changed.volume, 0f);
+
+    ListenableFuture<PlayerResult> same = coord.submit(coord.setVolume(0.5f));
+    clock.runUntilIdle();
+    assertEquals(PlayerResult.RESULT_SUCCESS, resultOf(same));
+    assertSame(changed, fake.getSnapshot()); // nothing changed, so nothing new was allocated
+  }
+
+  @Test
+  public void test_batch_instructions_optimized() throws ExecutionException, InterruptedException {
+    start();
+    ListenableFuture<PlayerResult> batch = coord.submitBatch(Arrays.asList(
+      coord.setMediaItem(item1),
+      coord.seekTo(1000L),
+      coord.seekTo(2000L), // supersedes the first seek
+      coord.setVolume(0.5f), // shares nothing with the seek, so goes along with it
+      coord.play(), // waits for the seek, they share the position
+      coord.pause())); // kept, a play then a pause isn't the same as neither
+    clock.runUntilIdle();
+
+    assertEquals(PlayerResult.RESULT_SUCCESS, resultOf(batch));
+    assertEquals(Arrays.asList("reset", "setMediaItem", "volume", "seek", "play", "pause"), fake.calls); // in two posts
+    assertEquals(2000L, fake.getCurrentPosition());
+  }
+
+  @Test
+  public void test_batch_runs_moved_instruction_even_if_an_earlier_one_fails() throws ExecutionException, InterruptedException {
+    start();
+    coord.setCallbackTimeouts(5000L, 100L);
+    fake.seekDelayMs = FakeExoPlayerWrapper.NEVER;
+    ListenableFuture<PlayerResult> batch = coord.submitBatch(Arrays.asList(
+      coord.setMediaItem(item1),
+      coord.seekTo(1000L), // times out
+      coord.setVolume(0.5f), // moved ahead of the seek, so runs anyway
+      coord.play())); // shares the position with the seek, so never runs
+    clock.runUntilIdle();
+
+    assertEquals(PlayerResult.RESULT_ERROR_IO, resultOf(batch));
+    assertEquals(Arrays.asList("reset", "setMediaItem", "volume", "seek"), fake.calls);
+  }
+
+  @Test
+  public void test_player_batch_optimized() throws ExecutionException, InterruptedException {
+    SimpleAudioPlayer player = startPlayer();
+    ListenableFuture<PlayerResult> batch = player.submitBatch(Arrays.asList(
+      player.setMediaItemTask(item1),
+      player.setRepeatModeTask(SessionPlayer.REPEAT_MODE_ALL),
+      player.seekToTask(1000L),
+      player.seekToTask(2000L), // supersedes the first seek, foreach and all
+      player.playTask(),
+      player.pauseTask()));
+    clock.runUntilIdle();
+
+    assertEquals(PlayerResult.RESULT_SUCCESS, resultOf(batch));
+    assertEquals(Arrays.asList("reset", "setMediaItem", "repeat", "seek", "play", "pause"), fake.calls);
+    assertEquals(SessionPlayer.REPEAT_MODE_ALL, player.getRepeatMode()); // each task's foreach ran after its group
+    assertEquals(SessionPlayer.PLAYER_STATE_PAUSED, player.getPlayerState());
+  }
+
+  @Test
+  public void test_zip_waits_on_branches_together() throws ExecutionException, InterruptedException {
+    start();
+    fake.prepareDelayMs = 200L;
+    fake.seekDelayMs = 100L;
+    coord.submit(coord.setMediaItem(item1));
+    ListenableFuture<PlayerResult> ready = coord.submit(coord.prepare().zip(coord.seekTo(1000L), (p, s) -> s));
+
+    clock.advanceBy(199L);
+    assertFalse(ready.isDone());
+
+    clock.advanceBy(1L); // one after the other would take 300ms
+    assertEquals(PlayerResult.RESULT_SUCCESS, resultOf(ready));
+    assertEquals(Arrays.asList("reset", "setMediaItem", "prepare", "seek"), fake.calls);
+  }
+
+  @Test
+  public void test_random_sequences_never_stall() throws ExecutionException, InterruptedException {
+    Random random = new Random(85L);
+    long commands = 0;
+    long events = 0;
+
+    for (int run = 0; run < 2000; run++) {
+      start();
+      coord.setCallbackTimeouts(5000L, 2000L);
+      fake.prepareDelayMs = random.nextInt(10) == 0 ? FakeExoPlayerWrapper.NEVER : random.nextInt(500);
+      fake.seekDelayMs = random.nextInt(10) == 0 ? FakeExoPlayerWrapper.NEVER : random.nextInt(100);
+
+      List<ListenableFuture<PlayerResult>> futures = new ArrayList<>();
+      futures.add(coord.submit(coord.setPlaylist(Arrays.asList(item1, item2)).flatMap(r -> coord.prepare())));
+      for (int i = 0; i < 10; i++) {
+        futures.add(coord.submit(randomCommand(random)));
+        clock.advanceBy(random.nextInt(50));
+      }
+      clock.runUntilIdle();
+
+      for (ListenableFuture<PlayerResult> future : futures) {
+        int result = resultOf(future);
+        assertTrue(result == PlayerResult.RESULT_SUCCESS || result == PlayerResult.RESULT_INFO_SKIPPED || result == PlayerResult.RESULT_ERROR_IO);
+      }
+      commands += futures.size();
+      events += clock.getEventsRun();
+      clock.inline(coord::close);
+    }
+
+    assertTrue("Events per command: " + (events / (double) commands), events < commands * 6); // catches extra hops between threads
+  }
+
+  private MediaTask<Integer, PlayerResult> randomCommand(Random random) {
+    switch (random.nextInt(8)) {
+      case 0: return coord.play();
+      case 1: return coord.pause();
+      case 2: return coord.seekTo(random.nextInt(100_000));
+      case 3: return coord.skipToNextPlaylistItem();
+      case 4: return coord.skipToPreviousPlaylistItem();
+      case 5: return coord.setVolume(random.nextFloat());
+      case 6: return coord.setRepeatMode(SessionPlayer.REPEAT_MODE_ALL);
+      default: return coord.seekTo(0L).flatMap(r -> coord.play());
+    }
+  }
+
+}
@@ -0,0 +1,174 @@
+package com.eightbit85.simple_am2.internal;
+
+import com.google.common.base.Preconditions;
+
+import java.util.PriorityQueue;
+
+/**
+ * Simulated time for driving a TaskCoordinator on the JVM. The clock's schedulers share one queue
+ * of events, ordered by due time and then by when they were posted, and nothing runs until the
+ * test moves the clock along. Everything runs on the test's thread, so a run is deterministic.
+ *
+ * The coordinator's blocking calls (the constructor, reset and close) wait on its other thread,
+ * which would never come here, so they must be made through inline.
+ */
+class VirtualClock {
+
+  private static final long MAX_EVENTS_UNTIL_IDLE = 1_000_000L; // anything more is a livelock
+
+  private final PriorityQueue<Event> events;
+  private long now;
+  private long backSequence; // counts up, for normal posts
+  private long frontSequence; // counts down, so the latest post at the front goes first
+  private VirtualScheduler running; // scheduler whose event is being run, if any
+  private boolean isInline;
+  private long eventsRun;
+
+  VirtualClock() {
+    events = new PriorityQueue<>((a, b) -> a.dueAt != b.dueAt ? Long.compare(a.dueAt, b.dueAt) : Long.compare(a.sequence, b.sequence));
+  }
+
+  Scheduler newScheduler(String name) {
+    return new VirtualScheduler(name);
+  }
+
+  long now() {
+    return now;
+  }
+
+  /**
+   * @return How many events have been run, a deterministic measure of scheduling overhead
+   */
+  long getEventsRun() {
+    return eventsRun;
+  }
+
+  boolean isIdle() {
+    return events.isEmpty();
+  }
+
+  /**
+   * Runs the next event, moving the clock on to when it was due.
+   * @return False if there was nothing to run
+   */
+  boolean runNext() {
+    Event event = events.poll();
+    if (event == null) return false;
+
+    now = Math.max(now, event.dueAt);
+    VirtualScheduler previous = running;
+    running = event.scheduler;
+    try {
+      eventsRun++;
+      event.runnable.run();
+    } finally {
+      running = previous;
+    }
+    return true;
+  }
+
+  /**
+   * Runs everything that is due by now + ms, including anything those events post in that time,
+   * then leaves the clock at now + ms.
+   */
+  void advanceBy(long ms) {
+    Preconditions.checkArgument(ms >= 0);
+    long until = now + ms;
+    while (!events.isEmpty() && events.peek().dueAt <= until) runNext();
+    now = until;
+  }
+
+  /**
+   * Runs events, delayed ones included, until there are none left.
+   */
+  void runUntilIdle() {
+    long limit = eventsRun + MAX_EVENTS_UNTIL_IDLE;
+    while (runNext()) {
+      Preconditions.checkState(eventsRun < limit, "Still busy after %s events", MAX_EVENTS_UNTIL_IDLE);
+    }
+  }
+
+  /**
+   * Runs the block as if it were on every one of the clock's schedulers at once, for the
+   * coordinator's blocking calls. Anything they post is left for the clock.
+   */
+  void inline(Runnable block) {
+    boolean wasInline = isInline;
+    isInline = true;
+    try {
+      block.run();
+    } finally {
+      isInline = wasInline;
+    }
+  }
+
+  private static class Event {
+    final long dueAt;
+    final long sequence;
+    final VirtualScheduler scheduler;
+    final Runnable runnable;
+
+    Event(long dueAt, long sequence, VirtualScheduler scheduler, Runnable runnable) {
+      this.dueAt = dueAt;
+      this.sequence = sequence;
+      this.scheduler = scheduler;
+      this.runnable = runnable;
+    }
+  }
+
+  private class VirtualScheduler implements Scheduler {
+
+    private final String name;
+    private boolean isQuit;
+
+    VirtualScheduler(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public boolean post(Runnable runnable) {
+      return postDelayed(runnable, 0);
+    }
+
+    @Override
+    public boolean postDelayed(Runnable runnable, long delayMs) {
+      if (isQuit) return false;
+      events.add(new Event(now + Math.max(0, delayMs), ++backSequence, this, runnable));
+      return true;
+    }
+
+    @Override
+    public boolean postAtFront(Runnable runnable) {
+      if (isQuit) return false;
+      events.add(new Event(now, --frontSequence, this, runnable));
+      return true;
+    }
+
+    @Override
+    public void remove(Runnable runnable) {
+      events.removeIf(e -> e.scheduler == this && e.runnable == runnable);
+    }
+
+    @Override
+    public boolean isCurrentThread() {
+      return running == this || isInline;
+    }
+
+    @Override
+    public long uptimeMillis() {
+      return now;
+    }
+
+    @Override
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public void quit() {
+      isQuit = true;
+      events.removeIf(e -> e.scheduler == this);
+    }
+  }
+
+}